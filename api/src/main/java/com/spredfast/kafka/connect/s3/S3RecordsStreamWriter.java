@@ -0,0 +1,81 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.stream.Stream;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * A writer that encodes each record straight into the S3 file, instead of returning a new array per record.
+ * <p>
+ * The sink writes through this contract whenever it can, and adapts any other {@link S3RecordsWriter}
+ * with {@link #from(S3RecordsWriter)}.
+ */
+public interface S3RecordsStreamWriter extends S3RecordsWriter {
+
+	/**
+	 * Encode a single record. The bytes written must be the same as {@link #writeBatch(Stream)} would return for it.
+	 *
+	 * @param key   may be null.
+	 * @param value may be null.
+	 * @param out   where to write. Must not be closed.
+	 */
+	void write(String topic, int partition, byte[] key, byte[] value, OutputStream out) throws IOException;
+
+	@Override
+	default Stream<byte[]> writeBatch(Stream<ProducerRecord<byte[], byte[]>> records) {
+		return records.map(record -> {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				write(record.topic(), record.partition(), record.key(), record.value(), out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return out.toByteArray();
+		});
+	}
+
+	/**
+	 * @return the writer itself if it already writes to a stream, otherwise a writer that copies the
+	 * arrays returned by {@link S3RecordsWriter#writeBatch(Stream)} to the stream.
+	 */
+	static S3RecordsStreamWriter from(S3RecordsWriter writer) {
+		if (writer instanceof S3RecordsStreamWriter) {
+			return (S3RecordsStreamWriter) writer;
+		}
+		return new S3RecordsStreamWriter() {
+			@Override
+			public byte[] init(String topic, int partition, long startOffset) {
+				return writer.init(topic, partition, startOffset);
+			}
+
+			@Override
+			public void write(String topic, int partition, byte[] key, byte[] value, OutputStream out) throws IOException {
+				try {
+					writer.writeBatch(Stream.of(new ProducerRecord<>(topic, partition, key, value))).forEach(bytes -> {
+						try {
+							out.write(bytes);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			}
+
+			@Override
+			public Stream<byte[]> writeBatch(Stream<ProducerRecord<byte[], byte[]>> records) {
+				return writer.writeBatch(records);
+			}
+
+			@Override
+			public byte[] finish(String topic, int partition) {
+				return writer.finish(topic, partition);
+			}
+		};
+	}
+}
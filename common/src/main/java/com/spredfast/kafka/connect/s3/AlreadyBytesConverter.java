@@ -16,8 +16,22 @@ public class AlreadyBytesConverter implements Converter {
 	public void configure(Map<String, ?> configs, boolean isKey) {
 	}
 
+	/**
+	 * @return true if the converter is exactly this one, so the tasks can pass bytes through without calling it.
+	 */
+	public static boolean isIdentity(Converter converter) {
+		return converter != null && converter.getClass() == AlreadyBytesConverter.class;
+	}
+
 	@Override
 	public byte[] fromConnectData(String topic, Schema schema, Object value) {
+		return bytes(topic, schema, value);
+	}
+
+	/**
+	 * {@link #fromConnectData} without an instance, for the sink's pass-through path.
+	 */
+	public static byte[] bytes(String topic, Schema schema, Object value) {
 		if (schema != null && schema != Schema.BYTES_SCHEMA && schema != Schema.OPTIONAL_BYTES_SCHEMA) {
 			throw new DataException(topic + " error: Not a byte array! " + value);
 		}
@@ -0,0 +1,327 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+
+/**
+ * The chunks of a data file, held as one primitive column per {@link ChunkDescriptor} field, so that
+ * files with many chunks are cheap to load and to search.
+ * <p>
+ * Written as a fixed-width binary file: a header (magic, version, column count, chunk count, all big-endian ints)
+ * followed by each column in turn, one long per chunk. Readers skip columns they don't know about.
+ * One of the columns is the number of checkpoints in each chunk; all the checkpoint offsets, then all the
+ * checkpoint positions, follow the columns. Chunks without timestamps have {@link #NO_TIMESTAMP} in the
+ * timestamp columns, and chunks compressed without a preset dictionary have {@link #NO_DICTIONARY}.
+ * {@link #read(String, InputStream)} also accepts the JSON index, for archives written before this existed.
+ */
+public class BinaryChunksIndex {
+
+	public static final String SUFFIX = ".index.bin";
+	public static final String JSON_SUFFIX = ".index.json";
+
+	// "KCSI"
+	static final int MAGIC = 0x4b435349;
+	static final int VERSION = 1;
+	static final int COLUMNS = 9;
+	// before checkpoints
+	private static final int REQUIRED_COLUMNS = 5;
+
+	public static final long NO_TIMESTAMP = -1;
+	public static final long NO_DICTIONARY = -1;
+
+	private static final ObjectReader JSON = new ObjectMapper().reader(ChunksIndex.class);
+
+	private final long[] firstRecordOffset;
+	private final long[] numRecords;
+	private final long[] byteOffset;
+	private final long[] byteLength;
+	private final long[] byteLengthUncompressed;
+	private final long[] checkpointCount;
+	private final long[] minTimestamp;
+	private final long[] maxTimestamp;
+	private final long[] dictionaryId;
+	// where each chunk's checkpoints start in the two arrays below
+	private int[] firstCheckpoint;
+	private long[] checkpointOffsets;
+	private long[] checkpointPositions;
+
+	private BinaryChunksIndex(int size) {
+		firstRecordOffset = new long[size];
+		numRecords = new long[size];
+		byteOffset = new long[size];
+		byteLength = new long[size];
+		byteLengthUncompressed = new long[size];
+		checkpointCount = new long[size];
+		minTimestamp = new long[size];
+		maxTimestamp = new long[size];
+		dictionaryId = new long[size];
+		// for indexes written before timestamps (or dictionaries) were
+		Arrays.fill(minTimestamp, NO_TIMESTAMP);
+		Arrays.fill(maxTimestamp, NO_TIMESTAMP);
+		Arrays.fill(dictionaryId, NO_DICTIONARY);
+	}
+
+	public static BinaryChunksIndex of(List<ChunkDescriptor> chunks) {
+		BinaryChunksIndex index = new BinaryChunksIndex(chunks.size());
+		for (int i = 0; i < chunks.size(); i++) {
+			ChunkDescriptor chunk = chunks.get(i);
+			index.firstRecordOffset[i] = chunk.first_record_offset;
+			index.numRecords[i] = chunk.num_records;
+			index.byteOffset[i] = chunk.byte_offset;
+			index.byteLength[i] = chunk.byte_length;
+			index.byteLengthUncompressed[i] = chunk.byte_length_uncompressed;
+			index.checkpointCount[i] = chunk.checkpoint_offsets == null ? 0 : chunk.checkpoint_offsets.length;
+			if (chunk.min_timestamp != null && chunk.max_timestamp != null) {
+				index.minTimestamp[i] = chunk.min_timestamp;
+				index.maxTimestamp[i] = chunk.max_timestamp;
+			}
+			if (chunk.dictionary_id != null) {
+				index.dictionaryId[i] = chunk.dictionary_id;
+			}
+		}
+		index.allocateCheckpoints();
+		for (int i = 0; i < chunks.size(); i++) {
+			ChunkDescriptor chunk = chunks.get(i);
+			if (chunk.checkpoint_offsets != null) {
+				System.arraycopy(chunk.checkpoint_offsets, 0, index.checkpointOffsets, index.firstCheckpoint[i], chunk.checkpoint_offsets.length);
+				System.arraycopy(chunk.checkpoint_positions, 0, index.checkpointPositions, index.firstCheckpoint[i], chunk.checkpoint_positions.length);
+			}
+		}
+		return index;
+	}
+
+	private void allocateCheckpoints() {
+		firstCheckpoint = new int[size() + 1];
+		for (int i = 0; i < size(); i++) {
+			long end = firstCheckpoint[i] + checkpointCount[i];
+			if (checkpointCount[i] < 0 || end > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Bad checkpoint count " + checkpointCount[i] + " for chunk " + i);
+			}
+			firstCheckpoint[i + 1] = (int) end;
+		}
+		checkpointOffsets = new long[firstCheckpoint[size()]];
+		checkpointPositions = new long[firstCheckpoint[size()]];
+	}
+
+	public int size() {
+		return firstRecordOffset.length;
+	}
+
+	/**
+	 * @return the size of the file (compressed) in bytes.
+	 */
+	public long totalSize() {
+		int last = size() - 1;
+		return last < 0 ? 0 : byteOffset[last] + byteLength[last];
+	}
+
+	public long lastOffset() {
+		int last = size() - 1;
+		return last < 0 ? -1 : firstRecordOffset[last] + numRecords[last] - 1;
+	}
+
+	/**
+	 * Same as {@link ChunksIndex#chunkContaining(long)}: the first chunk that ends after the offset.
+	 *
+	 * @return the position of the chunk, or -1 if the offset is past the end of the file.
+	 */
+	public int indexOfChunkContaining(long offset) {
+		int low = 0;
+		int high = size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (firstRecordOffset[mid] + numRecords[mid] > offset) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low < size() ? low : -1;
+	}
+
+	public Optional<ChunkDescriptor> chunkContaining(long offset) {
+		int i = indexOfChunkContaining(offset);
+		return i < 0 ? Optional.empty() : Optional.of(chunk(i));
+	}
+
+	/**
+	 * @param chunk  the position of a chunk, e.g. from {@link #indexOfChunkContaining(long)}.
+	 * @param offset a record offset in the chunk.
+	 * @return the checkpoint, of those in the chunk, closest before or at the offset. -1 if there is none, so
+	 * reading has to start at the beginning of the chunk.
+	 */
+	public int checkpointBefore(int chunk, long offset) {
+		int low = firstCheckpoint[chunk];
+		int high = firstCheckpoint[chunk + 1];
+		// first checkpoint after the offset
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (checkpointOffsets[mid] > offset) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low > firstCheckpoint[chunk] ? low - 1 : -1;
+	}
+
+	public long checkpointOffset(int checkpoint) {
+		return checkpointOffsets[checkpoint];
+	}
+
+	/**
+	 * @return where the checkpoint's record starts, in uncompressed bytes from the start of its chunk.
+	 */
+	public long checkpointPosition(int checkpoint) {
+		return checkpointPositions[checkpoint];
+	}
+
+	/**
+	 * @return the earliest record timestamp in the chunk, or {@link #NO_TIMESTAMP} if unknown.
+	 */
+	public long minTimestamp(int chunk) {
+		return minTimestamp[chunk];
+	}
+
+	/**
+	 * @return the latest record timestamp in the chunk, or {@link #NO_TIMESTAMP} if unknown.
+	 */
+	public long maxTimestamp(int chunk) {
+		return maxTimestamp[chunk];
+	}
+
+	/**
+	 * @return the id of the preset dictionary the chunk was compressed with, or {@link #NO_DICTIONARY}.
+	 */
+	public long dictionaryId(int chunk) {
+		return dictionaryId[chunk];
+	}
+
+	/**
+	 * @return false only if the chunk's records are known to all be outside the range, or it has none.
+	 */
+	public boolean mayContainTimestamps(int chunk, long start, long end) {
+		if (numRecords[chunk] == 0) {
+			return false;
+		}
+		return minTimestamp[chunk] == NO_TIMESTAMP
+			|| (minTimestamp[chunk] <= end && maxTimestamp[chunk] >= start);
+	}
+
+	public ChunkDescriptor chunk(int i) {
+		ChunkDescriptor chunk = new ChunkDescriptor();
+		chunk.first_record_offset = firstRecordOffset[i];
+		chunk.num_records = numRecords[i];
+		chunk.byte_offset = byteOffset[i];
+		chunk.byte_length = byteLength[i];
+		chunk.byte_length_uncompressed = byteLengthUncompressed[i];
+		if (minTimestamp[i] != NO_TIMESTAMP) {
+			chunk.min_timestamp = minTimestamp[i];
+			chunk.max_timestamp = maxTimestamp[i];
+		}
+		if (dictionaryId[i] != NO_DICTIONARY) {
+			chunk.dictionary_id = dictionaryId[i];
+		}
+		if (checkpointCount[i] > 0) {
+			chunk.checkpoint_offsets = Arrays.copyOfRange(checkpointOffsets, firstCheckpoint[i], firstCheckpoint[i + 1]);
+			chunk.checkpoint_positions = Arrays.copyOfRange(checkpointPositions, firstCheckpoint[i], firstCheckpoint[i + 1]);
+		}
+		return chunk;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(COLUMNS);
+		data.writeInt(size());
+		for (long[] column : columns()) {
+			writeColumn(data, column);
+		}
+		writeColumn(data, checkpointOffsets);
+		writeColumn(data, checkpointPositions);
+		data.flush();
+	}
+
+	private static void writeColumn(DataOutputStream data, long[] column) throws IOException {
+		for (long value : column) {
+			data.writeLong(value);
+		}
+	}
+
+	public static BinaryChunksIndex readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		int magic = data.readInt();
+		if (magic != MAGIC) {
+			throw new IOException(String.format("Not a binary chunk index. Bad magic number 0x%08x", magic));
+		}
+		int version = data.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported binary chunk index version " + version);
+		}
+		int columns = data.readInt();
+		int size = data.readInt();
+		if (columns < REQUIRED_COLUMNS || size < 0) {
+			throw new IOException("Corrupt binary chunk index: " + columns + " columns, " + size + " chunks");
+		}
+		BinaryChunksIndex index = new BinaryChunksIndex(size);
+		long[][] known = index.columns();
+		for (int c = 0; c < Math.min(columns, known.length); c++) {
+			readColumn(data, known[c]);
+		}
+		// columns added by later writers
+		long unknown = (long) Math.max(0, columns - known.length) * size * 8;
+		while (unknown > 0) {
+			int skipped = data.skipBytes((int) Math.min(unknown, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				throw new EOFException("Binary chunk index ended early");
+			}
+			unknown -= skipped;
+		}
+		try {
+			index.allocateCheckpoints();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt binary chunk index", e);
+		}
+		readColumn(data, index.checkpointOffsets);
+		readColumn(data, index.checkpointPositions);
+		return index;
+	}
+
+	private static void readColumn(DataInputStream data, long[] column) throws IOException {
+		for (int i = 0; i < column.length; i++) {
+			column[i] = data.readLong();
+		}
+	}
+
+	/**
+	 * @param key the name of the index file, which decides the format.
+	 */
+	public static BinaryChunksIndex read(String key, InputStream in) throws IOException {
+		if (key.endsWith(SUFFIX)) {
+			return readFrom(in);
+		}
+		ChunksIndex json = JSON.readValue(in);
+		return of(json.chunks);
+	}
+
+	// in file order
+	private long[][] columns() {
+		return new long[][]{firstRecordOffset, numRecords, byteOffset, byteLength, byteLengthUncompressed, checkpointCount,
+			minTimestamp, maxTimestamp, dictionaryId};
+	}
+}
@@ -0,0 +1,116 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+import org.xerial.snappy.SnappyFramedInputStream;
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+/**
+ * Compression applied to each block (chunk) of an S3 data file.
+ * <p>
+ * Every block is compressed on its own, so a reader can start decompressing at the start of any block
+ * listed in the index. The codec is recorded as the file extension, which is how readers pick the decoder.
+ * <p>
+ * lz4-java and snappy-java are dependencies of the Kafka clients, so they are always on the Connect classpath.
+ */
+public interface BlockCodec {
+
+	/**
+	 * @return the name used to configure this codec.
+	 */
+	String name();
+
+	/**
+	 * @return the data file extension, without the dot.
+	 */
+	String extension();
+
+	/**
+	 * Start compressing a block. Closing the returned stream must write everything needed to decompress the
+	 * block on its own, and close the given stream.
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+
+	/**
+	 * Decompress one or more consecutive blocks.
+	 */
+	InputStream decompress(InputStream in) throws IOException;
+
+	BlockCodec GZIP = of("gzip", "gz", GZIPOutputStream::new, GZIPInputStream::new);
+
+	// lz4-java's block stream format. favors speed over ratio. the pure Java compressor, so no native library is
+	// loaded into the worker
+	BlockCodec LZ4 = of("lz4", "lz4",
+		out -> new LZ4BlockOutputStream(out, 256 * 1024, LZ4Factory.fastestJavaInstance().fastCompressor()),
+		in -> new ConcatenatedInputStream(in,
+			block -> new LZ4BlockInputStream(block, LZ4Factory.fastestJavaInstance().fastDecompressor())));
+
+	// Snappy framing format
+	BlockCodec SNAPPY = of("snappy", "snappy", SnappyFramedOutputStream::new,
+		in -> new ConcatenatedInputStream(in, SnappyFramedInputStream::new));
+
+	BlockCodec NONE = of("none", "raw", out -> out, in -> in);
+
+	// zlib with a preset dictionary. without one to hand, only blocks that don't need a dictionary can be read
+	BlockCodec ZLIB_DICT = new PresetDictionaryCodec(Deflater.DEFAULT_COMPRESSION);
+
+	List<BlockCodec> ALL = Collections.unmodifiableList(Arrays.asList(GZIP, LZ4, SNAPPY, NONE, ZLIB_DICT));
+
+	static BlockCodec forName(String name) {
+		return ALL.stream().filter(codec -> codec.name().equals(name)).findFirst()
+			.orElseThrow(() -> new IllegalArgumentException("Unknown compression " + name + ". Expected one of gzip, lz4, snappy, none, zlib-dict"));
+	}
+
+	/**
+	 * @return the codec a data file was written with, based on its extension.
+	 */
+	static Optional<BlockCodec> forKey(String key) {
+		return ALL.stream().filter(codec -> key.endsWith("." + codec.extension())).findFirst();
+	}
+
+	interface StreamFunction<T, R> {
+		R apply(T stream) throws IOException;
+	}
+
+	static BlockCodec of(String name, String extension, StreamFunction<OutputStream, OutputStream> compress,
+						 StreamFunction<InputStream, InputStream> decompress) {
+		return new BlockCodec() {
+			@Override
+			public String name() {
+				return name;
+			}
+
+			@Override
+			public String extension() {
+				return extension;
+			}
+
+			@Override
+			public OutputStream compress(OutputStream out) throws IOException {
+				return compress.apply(out);
+			}
+
+			@Override
+			public InputStream decompress(InputStream in) throws IOException {
+				return decompress.apply(in);
+			}
+
+			@Override
+			public String toString() {
+				return name;
+			}
+		};
+	}
+}
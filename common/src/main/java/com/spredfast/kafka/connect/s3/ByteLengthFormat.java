@@ -1,6 +1,7 @@
 package com.spredfast.kafka.connect.s3;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -37,22 +38,66 @@ public class ByteLengthFormat implements S3RecordFormat, Configurable {
 
 	@Override
 	public S3RecordsWriter newWriter() {
-		return records -> records.map(this::encode);
+		return new Writer(includesKeys.isPresent());
 	}
 
-	private byte[] encode(ProducerRecord<byte[], byte[]> r) {
-		// write optionally the key, and the value, each preceded by their length
-		byte[] key = includesKeys.flatMap(t -> Optional.ofNullable(r.key())).orElse(NO_BYTES);
-		byte[] value = Optional.ofNullable(r.value()).orElse(NO_BYTES);
-		byte[] result = new byte[LEN_SIZE + value.length + (includesKeys.map(t -> key.length + LEN_SIZE).orElse(0))];
-		ByteBuffer wrapped = ByteBuffer.wrap(result);
-		includesKeys.ifPresent(t -> {
-			wrapped.putInt(key.length);
-			wrapped.put(key);
-		});
-		wrapped.putInt(value.length);
-		wrapped.put(value);
-		return result;
+	/**
+	 * Writes optionally the key, and the value, each preceded by their length.
+	 */
+	private static class Writer implements S3RecordsStreamWriter {
+		private final boolean includesKeys;
+
+		Writer(boolean includesKeys) {
+			this.includesKeys = includesKeys;
+		}
+
+		@Override
+		public Stream<byte[]> writeBatch(Stream<ProducerRecord<byte[], byte[]>> records) {
+			return records.map(r -> encode(r.key(), r.value()));
+		}
+
+		@Override
+		public void write(String topic, int partition, byte[] key, byte[] value, OutputStream out) throws IOException {
+			if (includesKeys) {
+				key = key == null ? NO_BYTES : key;
+				writeInt(out, key.length);
+				out.write(key);
+			}
+			value = value == null ? NO_BYTES : value;
+			writeInt(out, value.length);
+			out.write(value);
+		}
+
+		private byte[] encode(byte[] key, byte[] value) {
+			key = key == null || !includesKeys ? NO_BYTES : key;
+			value = value == null ? NO_BYTES : value;
+			byte[] result = new byte[LEN_SIZE + value.length + (includesKeys ? LEN_SIZE + key.length : 0)];
+			int position = 0;
+			if (includesKeys) {
+				position = putInt(result, position, key.length);
+				System.arraycopy(key, 0, result, position, key.length);
+				position += key.length;
+			}
+			position = putInt(result, position, value.length);
+			System.arraycopy(value, 0, result, position, value.length);
+			return result;
+		}
+
+		// big-endian, as ByteBuffer would
+		private static int putInt(byte[] bytes, int position, int value) {
+			bytes[position] = (byte) (value >>> 24);
+			bytes[position + 1] = (byte) (value >>> 16);
+			bytes[position + 2] = (byte) (value >>> 8);
+			bytes[position + 3] = (byte) value;
+			return position + LEN_SIZE;
+		}
+
+		private static void writeInt(OutputStream out, int value) throws IOException {
+			out.write(value >>> 24);
+			out.write(value >>> 16);
+			out.write(value >>> 8);
+			out.write(value);
+		}
 	}
 
 	@Override
@@ -0,0 +1,86 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Decodes a sequence of independently compressed blocks, for decoders that stop at the end of their first block
+ * (GZIPInputStream already handles this itself.)
+ * <p>
+ * The decoder must not read past the end of its block, so it is given a stream that always fills its reads.
+ */
+public class ConcatenatedInputStream extends InputStream {
+
+	private final PushbackInputStream in;
+	private final BlockCodec.StreamFunction<InputStream, InputStream> decoder;
+	private InputStream current;
+
+	public ConcatenatedInputStream(InputStream in, BlockCodec.StreamFunction<InputStream, InputStream> decoder) {
+		this.in = new PushbackInputStream(new FullReadInputStream(in));
+		this.decoder = decoder;
+	}
+
+	/**
+	 * @return false if there are no more blocks.
+	 */
+	private boolean nextBlock() throws IOException {
+		int b = in.read();
+		if (b == -1) {
+			return false;
+		}
+		in.unread(b);
+		current = decoder.apply(in);
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (current == null && !nextBlock()) {
+				return -1;
+			}
+			int read = current.read(b, off, len);
+			if (read > 0) {
+				return read;
+			}
+			if (read == -1) {
+				current = null;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private static class FullReadInputStream extends FilterInputStream {
+		FullReadInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int total = 0;
+			while (total < len) {
+				int read = in.read(b, off + total, len - total);
+				if (read == -1) {
+					return total == 0 ? -1 : total;
+				}
+				total += read;
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Where data files go under the key prefix: a template for the "directories" before each file name, e.g.,
+ * <code>{topic}/{partition}/{yyyy}/{MM}/{dd}</code>. File names are unchanged (topic-partition-offset.ext).
+ * <p>
+ * Known placeholders are {topic}, {partition} (zero padded to 5 digits, like file names) and the upload date in UTC:
+ * {yyyy}, {MM}, {dd} and {HH}. Everything else is copied as is.
+ * <p>
+ * Keys only sort in offset order within a partition if everything after the partition sorts in time order, so put
+ * the date parts biggest first.
+ */
+public class KeyLayout {
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\{([^}]*)}");
+
+	public static final KeyLayout DEFAULT = new KeyLayout("{yyyy}-{MM}-{dd}");
+
+	private final String template;
+	// the part of the template that doesn't depend on the date, up to the last / before it
+	private final String fixed;
+
+	public KeyLayout(String template) {
+		if (template.startsWith("/") || template.endsWith("/")) {
+			throw new IllegalArgumentException("Key layout should not start or end with /: " + template);
+		}
+		Matcher matcher = PLACEHOLDER.matcher(template);
+		int dateStart = template.length();
+		while (matcher.find()) {
+			switch (matcher.group(1)) {
+				case "topic":
+				case "partition":
+					break;
+				case "yyyy":
+				case "MM":
+				case "dd":
+				case "HH":
+					dateStart = Math.min(dateStart, matcher.start());
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown placeholder " + matcher.group() + " in key layout " + template
+						+ ". Expected {topic}, {partition}, {yyyy}, {MM}, {dd} or {HH}");
+			}
+		}
+		this.template = template;
+		if (dateStart == template.length()) {
+			this.fixed = template + "/";
+		} else {
+			this.fixed = template.substring(0, template.lastIndexOf('/', dateStart) + 1);
+		}
+	}
+
+	/**
+	 * @return the "directory" for a data file of the partition uploaded at the given time, without the key prefix.
+	 * Ends with /.
+	 */
+	public String directory(String topic, int partition, long uploadMillis) {
+		ZonedDateTime date = ZonedDateTime.ofInstant(Instant.ofEpochMilli(uploadMillis), ZoneOffset.UTC);
+		return expand(template, topic, partition)
+			.replace("{yyyy}", String.format("%04d", date.getYear()))
+			.replace("{MM}", String.format("%02d", date.getMonthValue()))
+			.replace("{dd}", String.format("%02d", date.getDayOfMonth()))
+			.replace("{HH}", String.format("%02d", date.getHour()))
+			+ "/";
+	}
+
+	/**
+	 * @return true if all of a topic's files share a prefix that can be listed on its own.
+	 */
+	public boolean byTopic() {
+		return fixed.contains("{topic}");
+	}
+
+	/**
+	 * @return true if all of a partition's files share a prefix that can be listed on its own.
+	 */
+	public boolean byPartition() {
+		return fixed.contains("{partition}");
+	}
+
+	/**
+	 * The smallest set of prefixes (without the key prefix) to list to find every file of the given partitions.
+	 * If the layout is by topic or partition, but those aren't given, that's the whole key prefix.
+	 *
+	 * @param topics     empty if not known.
+	 * @param partitions the partition numbers, of each topic. Empty if not known.
+	 * @return in the order to list them.
+	 */
+	public List<String> listPrefixes(Collection<String> topics, Collection<Integer> partitions) {
+		TreeSet<String> prefixes = new TreeSet<>();
+		if ((byTopic() && topics.isEmpty()) || (byPartition() && partitions.isEmpty())) {
+			prefixes.add("");
+		} else {
+			// when the layout doesn't use them, any one will do
+			Collection<String> topicsOrAny = topics.isEmpty() ? Collections.singleton("") : topics;
+			Collection<Integer> partitionsOrAny = partitions.isEmpty() ? Collections.singleton(0) : partitions;
+			for (String topic : topicsOrAny) {
+				for (int partition : partitionsOrAny) {
+					prefixes.add(expand(fixed, topic, partition));
+				}
+			}
+		}
+		// "a/" covers "a/b/", so only list the shortest
+		List<String> covering = new ArrayList<>();
+		for (String prefix : prefixes) {
+			if (covering.isEmpty() || !prefix.startsWith(covering.get(covering.size() - 1))) {
+				covering.add(prefix);
+			}
+		}
+		return covering;
+	}
+
+	private static String expand(String template, String topic, int partition) {
+		return template.replace("{topic}", topic).replace("{partition}", String.format("%05d", partition));
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+}
@@ -0,0 +1,231 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzip with a configurable level and strategy, reusing native Deflaters across blocks rather than
+ * creating (and initializing zlib for) a new one per block as GZIPOutputStream does.
+ * <p>
+ * Output is regular gzip members, readable by {@link BlockCodec#GZIP}. Thread safe: one instance can be
+ * shared by all the partitions of a task. {@link #close()} frees the pooled Deflaters.
+ */
+public class PooledGzipCodec implements BlockCodec, AutoCloseable {
+
+	// same header as GZIPOutputStream: magic, deflate, no flags, no mtime, no extra flags, OS 0
+	private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+	private static final int BUFFER_SIZE = 8192;
+
+	private final int level;
+	private final int strategy;
+	private final Queue<Deflater> pool = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param level    {@link Deflater#DEFAULT_COMPRESSION}, or 0 (none) to 9 (best compression).
+	 * @param strategy {@link Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}.
+	 */
+	public PooledGzipCodec(int level, int strategy) {
+		this.level = level;
+		this.strategy = strategy;
+		// fail now rather than on the first block
+		release(borrow());
+	}
+
+	/**
+	 * @param level    a number, or one of DEFAULT, BEST_SPEED, BEST_COMPRESSION, NO_COMPRESSION.
+	 * @param strategy one of DEFAULT, FILTERED, HUFFMAN_ONLY.
+	 */
+	public static PooledGzipCodec from(String level, String strategy) {
+		return new PooledGzipCodec(parseLevel(level), parseStrategy(strategy));
+	}
+
+	static int parseLevel(String level) {
+		switch (level.toUpperCase()) {
+			case "DEFAULT":
+				return Deflater.DEFAULT_COMPRESSION;
+			case "BEST_SPEED":
+				return Deflater.BEST_SPEED;
+			case "BEST_COMPRESSION":
+				return Deflater.BEST_COMPRESSION;
+			case "NO_COMPRESSION":
+				return Deflater.NO_COMPRESSION;
+			default:
+				int parsed = Integer.parseInt(level);
+				if (parsed < Deflater.DEFAULT_COMPRESSION || parsed > Deflater.BEST_COMPRESSION) {
+					throw new IllegalArgumentException("Compression level must be -1 to 9, was " + level);
+				}
+				return parsed;
+		}
+	}
+
+	static int parseStrategy(String strategy) {
+		switch (strategy.toUpperCase()) {
+			case "DEFAULT":
+				return Deflater.DEFAULT_STRATEGY;
+			case "FILTERED":
+				return Deflater.FILTERED;
+			case "HUFFMAN_ONLY":
+				return Deflater.HUFFMAN_ONLY;
+			default:
+				throw new IllegalArgumentException("Unknown compression strategy " + strategy + ". Expected one of DEFAULT, FILTERED, HUFFMAN_ONLY");
+		}
+	}
+
+	@Override
+	public String name() {
+		return GZIP.name();
+	}
+
+	@Override
+	public String extension() {
+		return GZIP.extension();
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException {
+		return new GzipStream(out, null);
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) throws IOException {
+		return GZIP.decompress(in);
+	}
+
+	/**
+	 * @param deflateNanos called with the time spent in the Deflater for each block, when the block is complete. Time
+	 *                     spent writing the compressed bytes out isn't counted.
+	 * @return a view of this codec, sharing its Deflaters, that reports how long deflating takes.
+	 */
+	public BlockCodec withDeflateTimer(LongConsumer deflateNanos) {
+		return new BlockCodec() {
+			@Override
+			public String name() {
+				return PooledGzipCodec.this.name();
+			}
+
+			@Override
+			public String extension() {
+				return PooledGzipCodec.this.extension();
+			}
+
+			@Override
+			public OutputStream compress(OutputStream out) throws IOException {
+				return new GzipStream(out, deflateNanos);
+			}
+
+			@Override
+			public InputStream decompress(InputStream in) throws IOException {
+				return PooledGzipCodec.this.decompress(in);
+			}
+		};
+	}
+
+	private Deflater borrow() {
+		Deflater deflater = pool.poll();
+		if (deflater == null) {
+			// raw deflate. we write the gzip header and trailer ourselves
+			deflater = new Deflater(level, true);
+			deflater.setStrategy(strategy);
+		}
+		return deflater;
+	}
+
+	private void release(Deflater deflater) {
+		deflater.reset();
+		pool.offer(deflater);
+	}
+
+	@Override
+	public void close() {
+		Deflater deflater;
+		while ((deflater = pool.poll()) != null) {
+			deflater.end();
+		}
+	}
+
+	private class GzipStream extends DeflaterOutputStream {
+		private final CRC32 crc = new CRC32();
+		private final LongConsumer deflateNanos;
+		private long nanos;
+		private boolean closed;
+
+		GzipStream(OutputStream out, LongConsumer deflateNanos) throws IOException {
+			super(out, borrow(), BUFFER_SIZE);
+			this.deflateNanos = deflateNanos;
+			out.write(HEADER);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			crc.update(b, off, len);
+		}
+
+		/**
+		 * As {@link DeflaterOutputStream#deflate()}, but only the Deflater is timed, not the write of its output,
+		 * which may be to a slow disk or an S3 upload.
+		 */
+		@Override
+		protected void deflate() throws IOException {
+			int len;
+			if (deflateNanos == null) {
+				len = def.deflate(buf, 0, buf.length);
+			} else {
+				long start = System.nanoTime();
+				len = def.deflate(buf, 0, buf.length);
+				nanos += System.nanoTime() - start;
+			}
+			if (len > 0) {
+				out.write(buf, 0, len);
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (!def.finished()) {
+				def.finish();
+				while (!def.finished()) {
+					deflate();
+				}
+				writeTrailer();
+			}
+		}
+
+		private void writeTrailer() throws IOException {
+			writeInt((int) crc.getValue());
+			writeInt((int) def.getBytesRead());
+		}
+
+		// little-endian, as gzip requires
+		private void writeInt(int i) throws IOException {
+			out.write(i & 0xff);
+			out.write((i >> 8) & 0xff);
+			out.write((i >> 16) & 0xff);
+			out.write((i >> 24) & 0xff);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				finish();
+			} finally {
+				release(def);
+			}
+			if (deflateNanos != null) {
+				deflateNanos.accept(nanos);
+			}
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with a preset dictionary, so that small blocks of similar records (e.g., JSON with the same field names)
+ * compress well from their first byte rather than starting from an empty window.
+ * <p>
+ * Each block is a zlib stream. Blocks compressed with a dictionary carry its Adler-32 checksum as the dictionary id,
+ * so readers can tell which one they need: dictionaries are stored by id, under {@link #DIR} in the prefix (see
+ * {@link #key(String, long)}), and {@link Dictionaries} looks them up. Blocks without a dictionary are plain zlib.
+ * <p>
+ * Thread safe. Instances made by {@link #withDictionary(byte[])} share their Deflaters, which {@link #close()} frees.
+ */
+public class PresetDictionaryCodec implements BlockCodec, AutoCloseable {
+
+	public static final String DIR = "dictionaries/";
+
+	// the deflate window. only the last this many bytes of a longer dictionary are used
+	public static final int MAX_SIZE = 32 * 1024;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final int level;
+	// null to compress without one
+	private final byte[] dictionary;
+	private final Queue<Deflater> pool;
+
+	/**
+	 * Where readers find the dictionaries blocks were compressed with.
+	 */
+	public interface Dictionaries {
+		/**
+		 * @return the dictionary with the given id, or null if there is no such dictionary.
+		 */
+		byte[] get(long id) throws IOException;
+	}
+
+	/**
+	 * @param level {@link Deflater#DEFAULT_COMPRESSION}, or 0 (none) to 9 (best compression).
+	 */
+	public PresetDictionaryCodec(int level) {
+		this(level, null, new ConcurrentLinkedQueue<>());
+	}
+
+	private PresetDictionaryCodec(int level, byte[] dictionary, Queue<Deflater> pool) {
+		this.level = level;
+		this.dictionary = dictionary;
+		this.pool = pool;
+	}
+
+	/**
+	 * @param level a number, or one of DEFAULT, BEST_SPEED, BEST_COMPRESSION, NO_COMPRESSION.
+	 */
+	public static PresetDictionaryCodec from(String level) {
+		return new PresetDictionaryCodec(PooledGzipCodec.parseLevel(level));
+	}
+
+	/**
+	 * @param dictionary null for none. Trimmed to its last {@link #MAX_SIZE} bytes.
+	 * @return a codec, sharing this one's Deflaters, that compresses with the dictionary.
+	 */
+	public PresetDictionaryCodec withDictionary(byte[] dictionary) {
+		return new PresetDictionaryCodec(level, trim(dictionary), pool);
+	}
+
+	/**
+	 * @return the dictionary blocks are compressed with, or null if there is none.
+	 */
+	public byte[] dictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return the dictionary as it is used, i.e., its last {@link #MAX_SIZE} bytes. null if it is null or empty.
+	 */
+	public static byte[] trim(byte[] dictionary) {
+		if (dictionary == null || dictionary.length == 0) {
+			return null;
+		}
+		return dictionary.length <= MAX_SIZE ? dictionary
+			: Arrays.copyOfRange(dictionary, dictionary.length - MAX_SIZE, dictionary.length);
+	}
+
+	/**
+	 * @return the id zlib records for the dictionary: its Adler-32 checksum.
+	 */
+	public static long id(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary, 0, dictionary.length);
+		return adler.getValue();
+	}
+
+	/**
+	 * @return where the dictionary with the given id is stored under the prefix.
+	 */
+	public static String key(String prefix, long id) {
+		return String.format("%s%s%08x.dict", prefix, DIR, id);
+	}
+
+	@Override
+	public String name() {
+		return "zlib-dict";
+	}
+
+	@Override
+	public String extension() {
+		return "zdict";
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException {
+		return new BlockStream(out);
+	}
+
+	/**
+	 * Decompress blocks compressed with this codec's dictionary, or none.
+	 */
+	@Override
+	public InputStream decompress(InputStream in) throws IOException {
+		long id = dictionary == null ? -1 : id(dictionary);
+		return decompress(in, wanted -> wanted == id ? dictionary : null);
+	}
+
+	/**
+	 * Decompress one or more consecutive blocks, looking up the dictionaries they need.
+	 */
+	public static InputStream decompress(InputStream in, Dictionaries dictionaries) {
+		return new InflatingStream(in, dictionaries);
+	}
+
+	private Deflater borrow() {
+		Deflater deflater = pool.poll();
+		return deflater != null ? deflater : new Deflater(level);
+	}
+
+	private void release(Deflater deflater) {
+		// also forgets the dictionary
+		deflater.reset();
+		pool.offer(deflater);
+	}
+
+	@Override
+	public void close() {
+		Deflater deflater;
+		while ((deflater = pool.poll()) != null) {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name();
+	}
+
+	private class BlockStream extends DeflaterOutputStream {
+		private boolean closed;
+
+		BlockStream(OutputStream out) {
+			super(out, borrow(), BUFFER_SIZE);
+			if (dictionary != null) {
+				def.setDictionary(dictionary);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				finish();
+			} finally {
+				release(def);
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * Inflates one zlib stream after another. Whatever the Inflater was given past the end of a block is pushed back
+	 * for the next one.
+	 */
+	private static class InflatingStream extends InputStream {
+		private final PushbackInputStream in;
+		private final Dictionaries dictionaries;
+		private final Inflater inflater = new Inflater();
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int buffered;
+		private boolean inBlock;
+
+		InflatingStream(InputStream in, Dictionaries dictionaries) {
+			this.in = new PushbackInputStream(in, BUFFER_SIZE);
+			this.dictionaries = dictionaries;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (true) {
+				if (!inBlock && !nextBlock()) {
+					return -1;
+				}
+				int read;
+				try {
+					read = inflater.inflate(b, off, len);
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupt block", e);
+				}
+				if (read > 0) {
+					return read;
+				}
+				if (inflater.finished()) {
+					endBlock();
+				} else if (inflater.needsDictionary()) {
+					// sign extended by some JDKs
+					long id = inflater.getAdler() & 0xffffffffL;
+					byte[] dictionary = dictionaries.get(id);
+					if (dictionary == null) {
+						throw new IOException(String.format("Dictionary %08x not found", id));
+					}
+					inflater.setDictionary(dictionary);
+				} else if (inflater.needsInput()) {
+					buffered = in.read(buffer);
+					if (buffered == -1) {
+						throw new EOFException("Block ended early");
+					}
+					inflater.setInput(buffer, 0, buffered);
+				}
+			}
+		}
+
+		/**
+		 * @return false if there are no more blocks.
+		 */
+		private boolean nextBlock() throws IOException {
+			int b = in.read();
+			if (b == -1) {
+				return false;
+			}
+			in.unread(b);
+			inBlock = true;
+			return true;
+		}
+
+		private void endBlock() throws IOException {
+			int remaining = inflater.getRemaining();
+			if (remaining > 0) {
+				in.unread(buffer, buffered - remaining, remaining);
+			}
+			inflater.reset();
+			inBlock = false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Expensive things (thread pools, HTTP connection pools) shared by the tasks of a worker, one per key.
+ * <p>
+ * Each task {@link #acquire(Object, Supplier)}s a lease and closes it when it stops. The value is created by the first
+ * lease for a key and closed with the last, so nothing outlives the tasks using it. Thread safe.
+ */
+public class RefCountedCache<K, V> {
+
+	private final Map<K, Entry<V>> entries = new HashMap<>();
+	private final Consumer<V> close;
+
+	/**
+	 * @param close called once the last lease on a value is closed.
+	 */
+	public RefCountedCache(Consumer<V> close) {
+		this.close = close;
+	}
+
+	/**
+	 * @param create called, under the cache's lock, if there is no value for the key yet.
+	 */
+	public synchronized Lease<V> acquire(K key, Supplier<V> create) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry<>(create.get());
+			entries.put(key, entry);
+		}
+		entry.leases++;
+		Entry<V> leased = entry;
+		return new Lease<>(entry.value, () -> release(key, leased));
+	}
+
+	private void release(K key, Entry<V> entry) {
+		V closing = null;
+		synchronized (this) {
+			if (--entry.leases == 0) {
+				entries.remove(key);
+				closing = entry.value;
+			}
+		}
+		// outside the lock, since closing may wait for work in progress
+		if (closing != null) {
+			close.accept(closing);
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class Entry<V> {
+		final V value;
+		int leases;
+
+		Entry(V value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A reference to a cached value. Closing it more than once has no further effect.
+	 */
+	public static class Lease<V> implements AutoCloseable {
+		private final V value;
+		private Runnable release;
+
+		private Lease(V value, Runnable release) {
+			this.value = value;
+			this.release = release;
+		}
+
+		/**
+		 * A lease outside any cache, e.g., on a value that isn't shared, which closes it with the lease.
+		 */
+		public static <V> Lease<V> of(V value, Consumer<V> close) {
+			return new Lease<>(value, () -> close.accept(value));
+		}
+
+		public V get() {
+			return value;
+		}
+
+		@Override
+		public void close() {
+			Runnable release;
+			synchronized (this) {
+				release = this.release;
+				this.release = null;
+			}
+			if (release != null) {
+				release.run();
+			}
+		}
+	}
+}
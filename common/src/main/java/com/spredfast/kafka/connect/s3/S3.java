@@ -1,17 +1,34 @@
 package com.spredfast.kafka.connect.s3;
 
+import static java.util.stream.Collectors.toList;
+
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.S3ClientOptions;
 
 public class S3 {
 
+	// everything a client is built from
+	private static final List<String> CLIENT_SETTINGS = Arrays.asList("s3.endpoint", "s3.path_style",
+		"s3.max.connections", "s3.tcp.keepalive", "s3.connection.max.idle.ms", "s3.socket.send.buffer", "s3.socket.receive.buffer");
+
+	private static final RefCountedCache<List<String>, AmazonS3> CLIENTS = new RefCountedCache<>(client -> {
+		if (client instanceof AmazonWebServiceClient) {
+			((AmazonWebServiceClient) client).shutdown();
+		}
+	});
+
 	public static AmazonS3 s3client(Map<String, String> config) {
 		// Use default credentials provider that looks in Env + Java properties + profile + instance role
-		AmazonS3 s3Client = new AmazonS3Client();
+		AmazonS3 s3Client = new AmazonS3Client(clientConfiguration(config));
 
 		// If worker config sets explicit endpoint override (e.g. for testing) use that
 		String s3Endpoint = config.get("s3.endpoint");
@@ -25,4 +42,37 @@ public class S3 {
 		return s3Client;
 	}
 
+	/**
+	 * A client shared by all the tasks in the worker with the same S3 settings, so they share its connection pool
+	 * rather than each opening (and handshaking) their own. It is shut down when the last lease is closed.
+	 * <p>
+	 * Credentials always come from the default provider chain, which is the same for every task in the JVM.
+	 */
+	public static RefCountedCache.Lease<AmazonS3> sharedClient(Map<String, String> config) {
+		return CLIENTS.acquire(clientKey(config), () -> s3client(config));
+	}
+
+	/**
+	 * @return the settings that {@link #sharedClient(Map)} tells clients apart by.
+	 */
+	public static List<String> clientKey(Map<String, String> config) {
+		return CLIENT_SETTINGS.stream().map(config::get).collect(toList());
+	}
+
+	private static ClientConfiguration clientConfiguration(Map<String, String> config) {
+		ClientConfiguration configuration = new ClientConfiguration();
+		get(config, "s3.max.connections").map(Integer::parseInt).ifPresent(configuration::setMaxConnections);
+		get(config, "s3.tcp.keepalive").map(Boolean::parseBoolean).ifPresent(configuration::setUseTcpKeepAlive);
+		get(config, "s3.connection.max.idle.ms").map(Long::parseLong).ifPresent(configuration::setConnectionMaxIdleMillis);
+		int sendBuffer = get(config, "s3.socket.send.buffer").map(Integer::parseInt).orElse(0);
+		int receiveBuffer = get(config, "s3.socket.receive.buffer").map(Integer::parseInt).orElse(0);
+		// 0 leaves them to the OS
+		configuration.setSocketBufferSizeHints(sendBuffer, receiveBuffer);
+		return configuration;
+	}
+
+	private static Optional<String> get(Map<String, String> config, String key) {
+		return Optional.ofNullable(config.get(key));
+	}
+
 }
@@ -1,9 +1,8 @@
 package com.spredfast.kafka.connect.s3;
 
-import static java.util.stream.Collectors.toList;
-
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -46,26 +45,59 @@ public class TrailingDelimiterFormat implements S3RecordFormat, Configurable {
 				.orElse(DEFAULT_ENCODING);
 	}
 
-	private byte[] encode(ProducerRecord<byte[], byte[]> record) {
-		List<byte[]> bytes = Stream.of(
-			Optional.ofNullable(record.key()).filter(r -> keyDelimiter.isPresent()),
-			keyDelimiter,
-			Optional.ofNullable(record.value()),
-			Optional.of(valueDelimiter)
-		).map(o -> o.orElse(NO_BYTES)).filter(arr -> arr.length > 0).collect(toList());
-		int size = bytes.stream().map(arr -> arr.length).reduce(0, (a,b) -> a + b);
-		byte[] result = new byte[size];
-		for (int i = 0, written = 0; i < bytes.size(); i++) {
-			byte[] src = bytes.get(i);
-			System.arraycopy(src, 0, result, written, src.length);
-			written += src.length;
-		}
-		return result;
-	}
-
 	@Override
 	public S3RecordsWriter newWriter() {
-		return records -> records.map(this::encode);
+		return new Writer(keyDelimiter.orElse(null), valueDelimiter);
+	}
+
+	/**
+	 * Writes the key and key delimiter (if there is a key delimiter), then the value and value delimiter.
+	 */
+	private static class Writer implements S3RecordsStreamWriter {
+		// null if keys are not written
+		private final byte[] keyDelimiter;
+		private final byte[] valueDelimiter;
+
+		Writer(byte[] keyDelimiter, byte[] valueDelimiter) {
+			this.keyDelimiter = keyDelimiter;
+			this.valueDelimiter = valueDelimiter;
+		}
+
+		@Override
+		public Stream<byte[]> writeBatch(Stream<ProducerRecord<byte[], byte[]>> records) {
+			return records.map(r -> encode(r.key(), r.value()));
+		}
+
+		@Override
+		public void write(String topic, int partition, byte[] key, byte[] value, OutputStream out) throws IOException {
+			if (keyDelimiter != null) {
+				if (key != null) {
+					out.write(key);
+				}
+				out.write(keyDelimiter);
+			}
+			if (value != null) {
+				out.write(value);
+			}
+			out.write(valueDelimiter);
+		}
+
+		private byte[] encode(byte[] key, byte[] value) {
+			key = key == null || keyDelimiter == null ? NO_BYTES : key;
+			byte[] keyDelimiter = this.keyDelimiter == null ? NO_BYTES : this.keyDelimiter;
+			value = value == null ? NO_BYTES : value;
+			byte[] result = new byte[key.length + keyDelimiter.length + value.length + valueDelimiter.length];
+			int position = copy(key, result, 0);
+			position = copy(keyDelimiter, result, position);
+			position = copy(value, result, position);
+			copy(valueDelimiter, result, position);
+			return result;
+		}
+
+		private static int copy(byte[] src, byte[] dest, int position) {
+			System.arraycopy(src, 0, dest, position, src.length);
+			return position + src.length;
+		}
 	}
 
 	@Override
@@ -1,8 +1,10 @@
 package com.spredfast.kafka.connect.s3.json;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class ChunkDescriptor {
 
 	@JsonProperty
@@ -20,4 +22,36 @@ public class ChunkDescriptor {
 	@JsonProperty
 	public long first_record_offset;
 
+	/**
+	 * The range of record timestamps in the chunk, if its records had any.
+	 */
+	@JsonProperty
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public Long min_timestamp;
+
+	@JsonProperty
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public Long max_timestamp;
+
+	/**
+	 * Record offsets within the chunk, other than the first, where reading can start.
+	 */
+	@JsonProperty
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public long[] checkpoint_offsets;
+
+	/**
+	 * Where each of the checkpoint_offsets records starts, in uncompressed bytes from the start of the chunk.
+	 */
+	@JsonProperty
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public long[] checkpoint_positions;
+
+	/**
+	 * The id of the preset dictionary the chunk was compressed with, if it was.
+	 */
+	@JsonProperty
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public Long dictionary_id;
+
 }
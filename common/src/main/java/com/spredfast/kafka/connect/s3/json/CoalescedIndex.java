@@ -0,0 +1,90 @@
+package com.spredfast.kafka.connect.s3.json;
+
+import java.util.List;
+import java.util.Optional;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The index of a coalesced object: the data files of several partitions, one after the other, so that partitions
+ * with little data don't cost an object (and an index) each. Each part is a whole data file, header and all, that can
+ * be read on its own with a ranged GET.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CoalescedIndex {
+
+	// under the key prefix, whatever the key layout
+	public static final String DIR = "coalesced/";
+	// coalesced objects are <name>.coalesced.<extension>, with the index at <name>.coalesced.index.json
+	public static final String INFIX = ".coalesced.";
+	public static final String SUFFIX = ".coalesced.index.json";
+
+	/**
+	 * Of the object, which decides how it is decompressed.
+	 */
+	@JsonProperty
+	public String extension;
+
+	@JsonProperty
+	public List<Part> parts;
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class Part {
+
+		@JsonProperty
+		public String topic;
+
+		@JsonProperty
+		public int partition;
+
+		/**
+		 * Where the part starts in the object.
+		 */
+		@JsonProperty
+		public long byte_offset;
+
+		@JsonProperty
+		public long byte_length;
+
+		@JsonProperty
+		public long first_record_offset;
+
+		@JsonProperty
+		public long last_record_offset;
+
+		/**
+		 * The part's chunks, with byte offsets from the start of the part.
+		 */
+		@JsonProperty
+		public List<ChunkDescriptor> chunks;
+
+		public boolean isFor(String topic, int partition) {
+			return this.partition == partition && this.topic.equals(topic);
+		}
+	}
+
+	/**
+	 * @return the last part of the given partition, if there is one.
+	 */
+	public Optional<Part> part(String topic, int partition) {
+		Part found = null;
+		for (Part part : parts) {
+			if (part.isFor(topic, partition)) {
+				found = part;
+			}
+		}
+		return Optional.ofNullable(found);
+	}
+
+	/**
+	 * @return the key of the object this is the index of.
+	 */
+	public String dataKey(String indexKey) {
+		return indexKey.substring(0, indexKey.length() - SUFFIX.length()) + INFIX + extension;
+	}
+
+	public static boolean isIndex(String key) {
+		return key.endsWith(SUFFIX);
+	}
+}
@@ -0,0 +1,180 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+
+public class BinaryChunksIndexTest {
+
+	@Test
+	public void testSameLookupsAsJson() throws IOException {
+		ChunksIndex json = givenAnIndex();
+		BinaryChunksIndex index = roundTrip(BinaryChunksIndex.of(json.chunks));
+
+		assertEquals(json.chunks.size(), index.size());
+		assertEquals(json.totalSize(), index.totalSize());
+		assertEquals(json.lastOffset(), index.lastOffset());
+		for (long offset = -1; offset <= json.lastOffset() + 1; offset++) {
+			assertEquals("offset " + offset, describe(json.chunkContaining(offset)), describe(index.chunkContaining(offset)));
+		}
+	}
+
+	@Test
+	public void testReadsJsonByKey() throws IOException {
+		ChunksIndex json = givenAnIndex();
+		byte[] bytes = new ObjectMapper().writeValueAsBytes(json);
+
+		BinaryChunksIndex index = BinaryChunksIndex.read("topic-00000-000000000100" + BinaryChunksIndex.JSON_SUFFIX,
+			new ByteArrayInputStream(bytes));
+
+		assertEquals(json.lastOffset(), index.lastOffset());
+		assertEquals(describe(json.chunkContaining(150)), describe(index.chunkContaining(150)));
+	}
+
+	@Test
+	public void testSkipsUnknownColumns() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(BinaryChunksIndex.MAGIC);
+		out.writeInt(BinaryChunksIndex.VERSION);
+		out.writeInt(BinaryChunksIndex.COLUMNS + 1);
+		out.writeInt(1);
+		// first_record_offset, num_records, byte_offset, byte_length, byte_length_uncompressed, checkpoints,
+		// min and max timestamp, dictionary id, something new
+		for (long value : new long[]{10, 5, 0, 100, 400, 1, 1000, 2000, 7, 42}) {
+			out.writeLong(value);
+		}
+		// checkpoint offset and position
+		for (long value : new long[]{13, 250}) {
+			out.writeLong(value);
+		}
+
+		BinaryChunksIndex index = BinaryChunksIndex.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+
+		assertEquals(14, index.lastOffset());
+		assertEquals(100, index.totalSize());
+		assertEquals(250, index.checkpointPosition(index.checkpointBefore(0, 14)));
+		assertEquals(2000, index.maxTimestamp(0));
+		assertEquals(7, index.dictionaryId(0));
+	}
+
+	@Test
+	public void testReadsFirstLayout() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(BinaryChunksIndex.MAGIC);
+		out.writeInt(BinaryChunksIndex.VERSION);
+		out.writeInt(5);
+		out.writeInt(1);
+		for (long value : new long[]{10, 5, 0, 100, 400}) {
+			out.writeLong(value);
+		}
+
+		BinaryChunksIndex index = BinaryChunksIndex.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+
+		assertEquals(14, index.lastOffset());
+		assertEquals(-1, index.checkpointBefore(0, 14));
+		assertEquals(BinaryChunksIndex.NO_TIMESTAMP, index.minTimestamp(0));
+		assertTrue(index.mayContainTimestamps(0, 0, 1));
+		assertEquals(BinaryChunksIndex.NO_DICTIONARY, index.dictionaryId(0));
+	}
+
+	@Test
+	public void testTimestamps() throws IOException {
+		ChunksIndex json = givenAnIndex();
+		for (int i = 0; i < json.chunks.size(); i++) {
+			// one chunk per hour, except a few without timestamps
+			if (i % 10 != 9) {
+				json.chunks.get(i).min_timestamp = i * 3600_000L;
+				json.chunks.get(i).max_timestamp = i * 3600_000L + 3599_999L;
+			}
+		}
+		BinaryChunksIndex index = roundTrip(BinaryChunksIndex.of(json.chunks));
+
+		assertEquals(3600_000L, index.minTimestamp(1));
+		assertEquals(describe(Optional.of(json.chunks.get(5))), describe(Optional.of(index.chunk(5))));
+		assertTrue(index.mayContainTimestamps(3, 3 * 3600_000L + 1, 3 * 3600_000L + 2));
+		assertFalse(index.mayContainTimestamps(3, 0, 3 * 3600_000L - 1));
+		assertFalse(index.mayContainTimestamps(3, 4 * 3600_000L, Long.MAX_VALUE));
+		assertTrue(index.mayContainTimestamps(9, 0, 1));
+	}
+
+	@Test
+	public void testCheckpoints() throws IOException {
+		ChunksIndex json = givenAnIndex();
+		// a checkpoint every 2 records in chunk 6, which has 6 records
+		ChunkDescriptor chunk = json.chunks.get(6);
+		chunk.checkpoint_offsets = new long[]{chunk.first_record_offset + 2, chunk.first_record_offset + 4};
+		chunk.checkpoint_positions = new long[]{30, 60};
+		BinaryChunksIndex index = roundTrip(BinaryChunksIndex.of(json.chunks));
+
+		long first = chunk.first_record_offset;
+		assertEquals(6, index.indexOfChunkContaining(first + 3));
+		assertEquals(-1, index.checkpointBefore(6, first + 1));
+		int checkpoint = index.checkpointBefore(6, first + 3);
+		assertEquals(first + 2, index.checkpointOffset(checkpoint));
+		assertEquals(30, index.checkpointPosition(checkpoint));
+		assertEquals(60, index.checkpointPosition(index.checkpointBefore(6, first + 5)));
+		// other chunks have none
+		assertEquals(-1, index.checkpointBefore(5, first - 1));
+		assertEquals(-1, index.checkpointBefore(13, index.chunk(13).first_record_offset + 5));
+		assertEquals(describe(Optional.of(chunk)), describe(Optional.of(index.chunk(6))));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsJsonAsBinary() throws IOException {
+		BinaryChunksIndex.readFrom(new ByteArrayInputStream("{\"chunks\":[]}".getBytes("UTF-8")));
+	}
+
+	private ChunksIndex givenAnIndex() {
+		List<ChunkDescriptor> chunks = new ArrayList<>();
+		long offset = 100;
+		long position = 0;
+		for (int i = 0; i < 50; i++) {
+			ChunkDescriptor chunk = new ChunkDescriptor();
+			chunk.first_record_offset = offset;
+			// some empty chunks too
+			chunk.num_records = i % 7;
+			chunk.byte_offset = position;
+			chunk.byte_length = 20 + i;
+			chunk.byte_length_uncompressed = 100 + i;
+			offset += chunk.num_records;
+			position += chunk.byte_length;
+			chunks.add(chunk);
+		}
+		return ChunksIndex.of(chunks);
+	}
+
+	private BinaryChunksIndex roundTrip(BinaryChunksIndex index) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.writeTo(out);
+		int checkpoints = 0;
+		for (int i = 0; i < index.size(); i++) {
+			ChunkDescriptor chunk = index.chunk(i);
+			checkpoints += chunk.checkpoint_offsets == null ? 0 : chunk.checkpoint_offsets.length;
+		}
+		assertEquals(16 + (index.size() * BinaryChunksIndex.COLUMNS + checkpoints * 2) * 8, out.size());
+		return BinaryChunksIndex.read("topic-00000-000000000100" + BinaryChunksIndex.SUFFIX,
+			new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private String describe(Optional<ChunkDescriptor> chunk) {
+		return chunk.map(c -> c.first_record_offset + "/" + c.num_records + "@" + c.byte_offset + "+" + c.byte_length
+			+ "(" + c.byte_length_uncompressed + ")" + Arrays.toString(c.checkpoint_offsets)
+			+ Arrays.toString(c.checkpoint_positions) + c.min_timestamp + "-" + c.max_timestamp).orElse("none");
+	}
+}
@@ -0,0 +1,76 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class BlockCodecTest {
+
+	@Test
+	public void testConcatenatedBlocksRoundTrip() throws IOException {
+		for (BlockCodec codec : BlockCodec.ALL) {
+			ByteArrayOutputStream file = new ByteArrayOutputStream();
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			int secondBlockStart = 0;
+			for (int block = 0; block < 3; block++) {
+				if (block == 1) {
+					secondBlockStart = file.size();
+				}
+				try (OutputStream out = codec.compress(new NonClosing(file))) {
+					for (int i = 0; i < 1000; i++) {
+						byte[] record = ("block " + block + " record " + i + "\n").getBytes("UTF-8");
+						out.write(record);
+						expected.write(record);
+					}
+				}
+			}
+
+			assertArrayEquals(codec.name(), expected.toByteArray(), readAll(codec.decompress(new ByteArrayInputStream(file.toByteArray()))));
+
+			// start reading from a block boundary, as a ranged GET would
+			byte[] fromSecond = readAll(codec.decompress(new ByteArrayInputStream(file.toByteArray(), secondBlockStart, file.size())));
+			assertEquals(codec.name(), "block 1 record 0", new String(fromSecond, "UTF-8").split("\n")[0]);
+		}
+	}
+
+	@Test
+	public void testForKey() {
+		assertEquals(BlockCodec.GZIP, BlockCodec.forKey("prefix/2016-01-01/topic-00000-000000000000.gz").get());
+		assertEquals(BlockCodec.LZ4, BlockCodec.forKey("prefix/2016-01-01/topic-00000-000000000000.lz4").get());
+		assertEquals(BlockCodec.SNAPPY, BlockCodec.forName("snappy"));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static class NonClosing extends FilterOutputStream {
+		NonClosing(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.spredfast.kafka.connect.s3;
 
 import static java.util.stream.Collectors.toMap;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayInputStream;
@@ -46,15 +47,27 @@ public class FormatTests {
 		assertEquals(values, results);
 	}
 
-	private static List<ConsumerRecord<byte[], byte[]>> roundTrip(S3RecordFormat format, long startOffset, Stream<ProducerRecord<byte[], byte[]>> records) throws IOException {
+	private static List<ConsumerRecord<byte[], byte[]>> roundTrip(S3RecordFormat format, long startOffset, Stream<ProducerRecord<byte[], byte[]>> recordStream) throws IOException {
 		S3RecordsWriter writer = format.newWriter();
+		List<ProducerRecord<byte[], byte[]>> records = recordStream.collect(Collectors.toList());
 
 		ByteArrayOutputStream boas = new ByteArrayOutputStream();
 		boas.write(writer.init("topic", 0, startOffset));
 
-		writer.writeBatch(records).forEach(b -> boas.write(b, 0, b.length));
+		writer.writeBatch(records.stream()).forEach(b -> boas.write(b, 0, b.length));
 		boas.write(writer.finish("topic", 0));
 
+		if (writer instanceof S3RecordsStreamWriter) {
+			// writing straight to the stream must give exactly the same bytes
+			ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+			streamed.write(writer.init("topic", 0, startOffset));
+			for (ProducerRecord<byte[], byte[]> record : records) {
+				((S3RecordsStreamWriter) writer).write(record.topic(), record.partition(), record.key(), record.value(), streamed);
+			}
+			streamed.write(writer.finish("topic", 0));
+			assertArrayEquals(boas.toByteArray(), streamed.toByteArray());
+		}
+
 		ByteArrayInputStream in = new ByteArrayInputStream(boas.toByteArray());
 		S3RecordsReader reader = format.newReader();
 		if (reader.isInitRequired()) {
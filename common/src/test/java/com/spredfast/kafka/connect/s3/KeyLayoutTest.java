@@ -0,0 +1,59 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class KeyLayoutTest {
+
+	private static final long UPLOADED = Instant.parse("2016-01-02T03:04:05Z").toEpochMilli();
+
+	@Test
+	public void testDefaultIsTheUploadDay() {
+		assertEquals("2016-01-02/", KeyLayout.DEFAULT.directory("topic", 3, UPLOADED));
+		assertFalse(KeyLayout.DEFAULT.byTopic());
+		assertEquals(Collections.singletonList(""), KeyLayout.DEFAULT.listPrefixes(Collections.singleton("topic"), Arrays.asList(0, 1)));
+	}
+
+	@Test
+	public void testByTopicAndPartition() {
+		KeyLayout layout = new KeyLayout("{topic}/{partition}/{yyyy}/{MM}/{dd}/{HH}");
+
+		assertEquals("topic/00003/2016/01/02/03/", layout.directory("topic", 3, UPLOADED));
+		assertTrue(layout.byTopic());
+		assertTrue(layout.byPartition());
+		assertEquals(Arrays.asList("a/00000/", "a/00002/", "b/00000/", "b/00002/"),
+			layout.listPrefixes(Arrays.asList("b", "a"), Arrays.asList(2, 0)));
+		// don't know which topics, so list them all
+		assertEquals(Collections.singletonList(""), layout.listPrefixes(Collections.emptyList(), Arrays.asList(2, 0)));
+	}
+
+	@Test
+	public void testByTopicOnly() {
+		KeyLayout layout = new KeyLayout("archive/{topic}/{yyyy}-{MM}-{dd}");
+
+		assertEquals("archive/topic/2016-01-02/", layout.directory("topic", 3, UPLOADED));
+		assertTrue(layout.byTopic());
+		assertFalse(layout.byPartition());
+		assertEquals(Collections.singletonList("archive/topic/"), layout.listPrefixes(Collections.singleton("topic"), Arrays.asList(0, 1)));
+	}
+
+	@Test
+	public void testWithoutDate() {
+		KeyLayout layout = new KeyLayout("{topic}-{partition}");
+
+		assertEquals("topic-00003/", layout.directory("topic", 3, UPLOADED));
+		assertEquals(Collections.singletonList("topic-00003/"), layout.listPrefixes(Collections.singleton("topic"), Collections.singleton(3)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsUnknownPlaceholders() {
+		new KeyLayout("{topic}/{offset}");
+	}
+}
@@ -0,0 +1,99 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class PooledGzipCodecTest {
+
+	@Test
+	public void testSameOutputAsGZIPOutputStream() throws IOException {
+		byte[] data = givenSomeData();
+		try (PooledGzipCodec codec = PooledGzipCodec.from("DEFAULT", "DEFAULT")) {
+			// twice, so the second block reuses the pooled Deflater
+			for (int i = 0; i < 2; i++) {
+				assertArrayEquals(compress(BlockCodec.GZIP, data), compress(codec, data));
+			}
+		}
+	}
+
+	@Test
+	public void testDeflateTimeExcludesWrites() throws IOException {
+		byte[] data = givenSomeData();
+		AtomicLong deflateNanos = new AtomicLong(-1);
+		try (PooledGzipCodec codec = PooledGzipCodec.from("DEFAULT", "DEFAULT")) {
+			// e.g., a streaming upload waiting on S3
+			OutputStream slow = new ByteArrayOutputStream() {
+				@Override
+				public synchronized void write(byte[] b, int off, int len) {
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					super.write(b, off, len);
+				}
+			};
+			try (OutputStream out = codec.withDeflateTimer(deflateNanos::set).compress(slow)) {
+				out.write(data);
+			}
+		}
+		assertTrue(deflateNanos.get() > 0);
+		assertTrue(deflateNanos.get() + "ns", deflateNanos.get() < TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	@Test
+	public void testLevelAndStrategy() throws IOException {
+		byte[] data = givenSomeData();
+		AtomicLong deflateNanos = new AtomicLong(-1);
+		try (PooledGzipCodec fast = PooledGzipCodec.from("BEST_SPEED", "HUFFMAN_ONLY");
+			 PooledGzipCodec best = PooledGzipCodec.from("9", "FILTERED")) {
+			byte[] huffman = compress(fast.withDeflateTimer(deflateNanos::set), data);
+			byte[] smallest = compress(best, data);
+
+			assertTrue(huffman.length > smallest.length);
+			assertTrue(deflateNanos.get() > 0);
+			for (byte[] compressed : new byte[][]{huffman, smallest}) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				InputStream in = best.decompress(new ByteArrayInputStream(compressed));
+				for (int read; (read = in.read(buffer)) != -1; ) {
+					out.write(buffer, 0, read);
+				}
+				assertArrayEquals(data, out.toByteArray());
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownStrategy() {
+		PooledGzipCodec.from("DEFAULT", "FASTEST");
+	}
+
+	private static byte[] givenSomeData() throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (int i = 0; i < 5000; i++) {
+			data.write(("record " + i + " of the pooled gzip test\n").getBytes("UTF-8"));
+		}
+		return data.toByteArray();
+	}
+
+	private static byte[] compress(BlockCodec codec, byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (OutputStream out = codec.compress(compressed)) {
+			out.write(data, 0, 1000);
+			out.write(data[1000]);
+			out.write(data, 1001, data.length - 1001);
+		}
+		return compressed.toByteArray();
+	}
+}
@@ -0,0 +1,83 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class PresetDictionaryCodecTest {
+
+	@Test
+	public void testSmallBlocksCompressBetterWithADictionary() throws IOException {
+		byte[] dictionary = givenRecords(0, 50);
+		byte[] data = givenRecords(50, 200);
+		try (PresetDictionaryCodec codec = PresetDictionaryCodec.from("DEFAULT")) {
+			PresetDictionaryCodec withDictionary = codec.withDictionary(dictionary);
+			// one small block per record, the worst case for an empty window
+			byte[] without = compressRecords(codec, 50, 200);
+			byte[] with = compressRecords(withDictionary, 50, 200);
+
+			assertTrue(with.length + " < " + without.length, with.length * 2 < without.length);
+			assertArrayEquals(data, readAll(withDictionary.decompress(new ByteArrayInputStream(with))));
+			long id = PresetDictionaryCodec.id(dictionary);
+			assertArrayEquals(data, readAll(PresetDictionaryCodec.decompress(new ByteArrayInputStream(with),
+				wanted -> wanted == id ? dictionary : null)));
+			// the generic instance reads blocks that don't need one
+			assertArrayEquals(data, readAll(BlockCodec.ZLIB_DICT.decompress(new ByteArrayInputStream(without))));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingDictionary() throws IOException {
+		try (PresetDictionaryCodec codec = PresetDictionaryCodec.from("DEFAULT")) {
+			byte[] compressed = compressRecords(codec.withDictionary(givenRecords(0, 50)), 50, 60);
+			readAll(PresetDictionaryCodec.decompress(new ByteArrayInputStream(compressed), id -> null));
+		}
+	}
+
+	@Test
+	public void testTrimsToTheWindow() {
+		byte[] dictionary = new byte[PresetDictionaryCodec.MAX_SIZE + 10];
+		dictionary[10] = 1;
+		byte[] trimmed = PresetDictionaryCodec.trim(dictionary);
+		assertTrue(trimmed.length == PresetDictionaryCodec.MAX_SIZE && trimmed[0] == 1);
+		assertTrue(PresetDictionaryCodec.trim(new byte[0]) == null);
+	}
+
+	private static byte[] givenRecords(int from, int to) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (int i = from; i < to; i++) {
+			data.write(("{\"event_type\":\"page_view\",\"account_identifier\":" + (i * 7919 % 1000)
+				+ ",\"session_identifier\":\"" + Integer.toHexString(i * 31337) + "\",\"user_agent\":\"Mozilla/5.0\"}\n")
+				.getBytes("UTF-8"));
+		}
+		return data.toByteArray();
+	}
+
+	private static byte[] compressRecords(BlockCodec codec, int from, int to) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		for (int i = from; i < to; i++) {
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			try (OutputStream out = codec.compress(block)) {
+				out.write(givenRecords(i, i + 1));
+			}
+			compressed.write(block.toByteArray());
+		}
+		return compressed.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int read; (read = in.read(buffer)) != -1; ) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
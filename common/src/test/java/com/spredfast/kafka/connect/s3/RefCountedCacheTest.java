@@ -0,0 +1,73 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RefCountedCacheTest {
+
+	private final List<Object> closed = new ArrayList<>();
+	private final RefCountedCache<String, Object> cache = new RefCountedCache<>(closed::add);
+	private final AtomicInteger created = new AtomicInteger();
+
+	@Test
+	public void testSharedUntilTheLastLeaseCloses() {
+		RefCountedCache.Lease<Object> first = cache.acquire("a", this::create);
+		RefCountedCache.Lease<Object> second = cache.acquire("a", this::create);
+		assertSame(first.get(), second.get());
+		assertEquals(1, created.get());
+
+		first.close();
+		// closing twice doesn't release the other lease's reference
+		first.close();
+		assertEquals(0, closed.size());
+
+		second.close();
+		assertEquals(1, closed.size());
+		assertSame(second.get(), closed.get(0));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testOnePerKey() {
+		RefCountedCache.Lease<Object> a = cache.acquire("a", this::create);
+		RefCountedCache.Lease<Object> b = cache.acquire("b", this::create);
+		assertNotSame(a.get(), b.get());
+		assertEquals(2, cache.size());
+
+		b.close();
+		assertEquals(1, cache.size());
+		assertSame(b.get(), closed.get(0));
+	}
+
+	@Test
+	public void testRecreatedAfterRelease() {
+		RefCountedCache.Lease<Object> first = cache.acquire("a", this::create);
+		first.close();
+
+		RefCountedCache.Lease<Object> second = cache.acquire("a", this::create);
+		assertNotSame(first.get(), second.get());
+		assertEquals(2, created.get());
+	}
+
+	@Test
+	public void testOutsideTheCache() {
+		Object value = new Object();
+		RefCountedCache.Lease<Object> lease = RefCountedCache.Lease.of(value, closed::add);
+		lease.close();
+		lease.close();
+		assertEquals(1, closed.size());
+		assertSame(value, closed.get(0));
+	}
+
+	private Object create() {
+		created.incrementAndGet();
+		return new Object();
+	}
+}
@@ -0,0 +1,38 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import com.amazonaws.services.s3.AmazonS3;
+
+public class S3Test {
+
+	@Test
+	public void testSharedClientPerSettings() {
+		Map<String, String> config = new HashMap<>();
+		config.put("s3.endpoint", "http://localhost:4569");
+		config.put("name", "first");
+		Map<String, String> sameSettings = new HashMap<>(config);
+		sameSettings.put("name", "second");
+		Map<String, String> otherSettings = new HashMap<>(config);
+		otherSettings.put("s3.max.connections", "200");
+
+		AmazonS3 shutDown;
+		try (RefCountedCache.Lease<AmazonS3> first = S3.sharedClient(config);
+			 RefCountedCache.Lease<AmazonS3> second = S3.sharedClient(sameSettings);
+			 RefCountedCache.Lease<AmazonS3> other = S3.sharedClient(otherSettings)) {
+			assertSame(first.get(), second.get());
+			assertNotSame(first.get(), other.get());
+			shutDown = first.get();
+		}
+
+		// the last lease shut it down, so the next task gets a new one
+		try (RefCountedCache.Lease<AmazonS3> next = S3.sharedClient(config)) {
+			assertNotSame(shutDown, next.get());
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.spredfast.kafka.connect.s3.BlockCodec;
+
+/**
+ * Writes a file of small records to local disk, comparing a plain FileOutputStream with the
+ * FileChannelOutputStream modes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalFileBenchmark {
+
+	@Param({"stream", "channel", "mmap"})
+	public String output;
+
+	@Param({"lz4"})
+	public String compression;
+
+	private File dir;
+	private byte[] record;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("local-file-benchmark").toFile();
+		record = "a small record of the kind that makes the compressor write often\n".getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public long write100kRecords() throws IOException {
+		BlockCodec codec = BlockCodec.forName(compression);
+		File file = new File(dir, BlockGZIPFileWriter.dataFileName("bench", 0, codec));
+		OutputStream out;
+		switch (output) {
+			case "stream":
+				out = new FileOutputStream(file);
+				break;
+			case "mmap":
+				out = new FileChannelOutputStream(file, 0, 0, true);
+				break;
+			default:
+				out = new FileChannelOutputStream(file);
+		}
+		BlockGZIPFileWriter writer = new BlockGZIPFileWriter("bench", dir.getPath(), 0, 1024 * 1024, new byte[0], out, codec);
+		for (int i = 0; i < 100_000; i++) {
+			writer.write(o -> o.write(record));
+		}
+		writer.close();
+		long size = file.length();
+		writer.delete();
+		return size;
+	}
+}
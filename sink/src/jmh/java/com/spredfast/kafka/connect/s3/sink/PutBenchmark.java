@@ -0,0 +1,121 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import static java.util.stream.Collectors.groupingBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTaskContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures S3SinkTask.put for a batch of records from a few partitions, without touching S3.
+ * <p>
+ * Run with {@code ./gradlew :sink:jmh} and compare {@code gc.alloc.rate.norm} (bytes allocated per batch)
+ * between {@link #put()} and {@link #groupByPartition()}, which is only the per-record grouping that put used
+ * to do before writing anything.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutBenchmark {
+
+	@Param({"500"})
+	public int batchSize;
+
+	@Param({"4"})
+	public int partitions;
+
+	private List<SinkRecord> batch;
+	private S3SinkTask task;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		batch = new ArrayList<>(batchSize);
+		byte[] value = "a small record value".getBytes("UTF-8");
+		// records come from the consumer in runs per partition
+		int runLength = batchSize / partitions;
+		for (int i = 0; i < batchSize; i++) {
+			batch.add(new SinkRecord("benchmark-topic", i / runLength, null, null, Schema.BYTES_SCHEMA, value, i));
+		}
+
+		Map<String, String> config = new HashMap<>();
+		config.put("name", "put-benchmark");
+		config.put("s3.bucket", "put-benchmark");
+		config.put("local.buffer.dir", Files.createTempDirectory("put-benchmark").toString());
+		config.put("compression", "none");
+		config.put("compressed_block_size", Long.toString(Long.MAX_VALUE));
+		task = new S3SinkTask();
+		task.initialize(new BenchmarkContext());
+		task.start(config);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		// deletes the local files
+		task.stop();
+	}
+
+	@Benchmark
+	public S3SinkTask put() {
+		task.put(batch);
+		return task;
+	}
+
+	@Benchmark
+	public Map<TopicPartition, List<SinkRecord>> groupByPartition() {
+		return batch.stream().collect(groupingBy(record -> new TopicPartition(record.topic(), record.kafkaPartition())));
+	}
+
+	private static class BenchmarkContext implements SinkTaskContext {
+		@Override
+		public void offset(Map<TopicPartition, Long> offsets) {
+		}
+
+		@Override
+		public void offset(TopicPartition tp, long offset) {
+		}
+
+		@Override
+		public void timeout(long timeoutMs) {
+		}
+
+		@Override
+		public Set<TopicPartition> assignment() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public void pause(TopicPartition... partitions) {
+		}
+
+		@Override
+		public void resume(TopicPartition... partitions) {
+		}
+	}
+}
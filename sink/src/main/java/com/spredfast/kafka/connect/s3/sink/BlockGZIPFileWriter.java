@@ -2,6 +2,7 @@ package com.spredfast.kafka.connect.s3.sink;
 
 import static java.util.stream.Collectors.toList;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -9,11 +10,13 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.kafka.connect.errors.RetriableException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.BinaryChunksIndex;
+import com.spredfast.kafka.connect.s3.BlockCodec;
 import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
 import com.spredfast.kafka.connect.s3.json.ChunksIndex;
 
@@ -23,7 +26,8 @@ import com.spredfast.kafka.connect.s3.json.ChunksIndex;
  * <p>
  * In fact this file is the concatenation of possibly many separate GZIP files corresponding to smaller chunks
  * of the input. Alongside the output filename.gz file, a file filename-index.json is written containing JSON
- * metadata about the size and location of each block.
+ * metadata about the size and location of each block (or filename-index.bin, holding the same as a
+ * {@link BinaryChunksIndex}).
  * <p>
  * This allows a reading class to skip to particular line/record without decompressing whole file by looking up
  * the offset of the containing block, seeking to it and beginning GZIp read from there.
@@ -33,14 +37,44 @@ import com.spredfast.kafka.connect.s3.json.ChunksIndex;
  * <p>
  * Note that thanks to GZIP spec, the overall file is perfectly valid and will decompress as if it was a single stream
  * with any regular GZIP decoding library or program.
+ * <p>
+ * Despite the name, chunks may be compressed with another {@link BlockCodec}, which is then used as the data
+ * file extension.
  */
 public class BlockGZIPFileWriter implements Closeable {
 
+	/**
+	 * For records without a timestamp. Same as Kafka's.
+	 */
+	public static final long NO_TIMESTAMP = -1;
+
 	private String filenameBase;
 	private String path;
-	private GZIPOutputStream gzipStream;
+	private OutputStream gzipStream;
 	private CountingOutputStream fileStream;
+	private ChunkListener chunkListener;
+	private final BlockCodec codec;
+	private final boolean binaryIndex;
 	private final ObjectMapper objectMapper = new ObjectMapper();
+	// reused for every record written with write(RecordEncoder)
+	private RecordBuffer recordBuffer = new RecordBuffer();
+
+	/**
+	 * Encodes a single record into the file.
+	 */
+	public interface RecordEncoder {
+		void encode(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Implemented by data outputs that want to act on each completed chunk, e.g., to start uploading it.
+	 */
+	public interface ChunkListener {
+		/**
+		 * Called once all the compressed bytes of a chunk have been written to the output.
+		 */
+		void onChunkComplete() throws IOException;
+	}
 
 	private class Chunk {
 		public long rawBytes = 0;
@@ -48,6 +82,35 @@ public class BlockGZIPFileWriter implements Closeable {
 		public long compressedByteLength = 0;
 		public long firstOffset = 0;
 		public long numRecords = 0;
+		public long[] checkpointOffsets = new long[0];
+		public long[] checkpointPositions = new long[0];
+		public int checkpoints = 0;
+		public long minTimestamp = NO_TIMESTAMP;
+		public long maxTimestamp = NO_TIMESTAMP;
+
+		void timestamp(long timestamp) {
+			if (timestamp == NO_TIMESTAMP) {
+				return;
+			}
+			if (minTimestamp == NO_TIMESTAMP || timestamp < minTimestamp) {
+				minTimestamp = timestamp;
+			}
+			maxTimestamp = Math.max(maxTimestamp, timestamp);
+		}
+
+		void checkpoint() {
+			if (checkpoints == checkpointOffsets.length) {
+				checkpointOffsets = Arrays.copyOf(checkpointOffsets, Math.max(8, checkpoints * 2));
+				checkpointPositions = Arrays.copyOf(checkpointPositions, checkpointOffsets.length);
+			}
+			checkpointOffsets[checkpoints] = firstOffset + numRecords;
+			checkpointPositions[checkpoints] = rawBytes;
+			checkpoints++;
+		}
+
+		long recordsSinceCheckpoint() {
+			return checkpoints == 0 ? numRecords : firstOffset + numRecords - checkpointOffsets[checkpoints - 1];
+		}
 
 		ChunkDescriptor toJson() {
 			ChunkDescriptor chunkObj = new ChunkDescriptor();
@@ -56,10 +119,30 @@ public class BlockGZIPFileWriter implements Closeable {
 			chunkObj.byte_offset = byteOffset;
 			chunkObj.byte_length = compressedByteLength;
 			chunkObj.byte_length_uncompressed = rawBytes;
+			if (minTimestamp != NO_TIMESTAMP) {
+				chunkObj.min_timestamp = minTimestamp;
+				chunkObj.max_timestamp = maxTimestamp;
+			}
+			if (checkpoints > 0) {
+				chunkObj.checkpoint_offsets = Arrays.copyOf(checkpointOffsets, checkpoints);
+				chunkObj.checkpoint_positions = Arrays.copyOf(checkpointPositions, checkpoints);
+			}
 			return chunkObj;
 		}
 	}
 
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		static final int MAX_RETAINED = 1024 * 1024;
+
+		RecordBuffer() {
+			super(4096);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+
 	private class CountingOutputStream extends FilterOutputStream {
 		private long numBytes = 0;
 
@@ -85,6 +168,18 @@ public class BlockGZIPFileWriter implements Closeable {
 			numBytes += len;
 		}
 
+		/**
+		 * Closing a chunk's compressor must not close the file.
+		 */
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		void closeFile() throws IOException {
+			out.close();
+		}
+
 		public long getNumBytesWritten() {
 			return numBytes;
 		}
@@ -100,6 +195,13 @@ public class BlockGZIPFileWriter implements Closeable {
 	// record offsets in the index to reflect the global offset rather than local
 	private long firstRecordOffset;
 
+	private long rawBytesWritten;
+
+	// 0 for no checkpoints
+	private long checkpointInterval;
+
+	private Long dictionaryId;
+
 	public BlockGZIPFileWriter(String filenameBase, String path) throws IOException {
 		this(filenameBase, path, 0, 67108864);
 	}
@@ -114,7 +216,35 @@ public class BlockGZIPFileWriter implements Closeable {
 
 	public BlockGZIPFileWriter(String filenameBase, String path, long firstRecordOffset, long chunkThreshold, byte[] header)
 		throws IOException {
+		this(filenameBase, path, firstRecordOffset, chunkThreshold, header, null);
+	}
+
+	/**
+	 * @param out where to write the compressed data instead of {@link #getDataFilePath()}. The index is
+	 *            still written to {@link #getIndexFilePath()}. If it implements {@link ChunkListener} it will be
+	 *            notified as each chunk completes.
+	 */
+	public BlockGZIPFileWriter(String filenameBase, String path, long firstRecordOffset, long chunkThreshold, byte[] header,
+							   OutputStream out) throws IOException {
+		this(filenameBase, path, firstRecordOffset, chunkThreshold, header, out, BlockCodec.GZIP);
+	}
+
+	/**
+	 * @param codec how to compress each chunk.
+	 */
+	public BlockGZIPFileWriter(String filenameBase, String path, long firstRecordOffset, long chunkThreshold, byte[] header,
+							   OutputStream out, BlockCodec codec) throws IOException {
+		this(filenameBase, path, firstRecordOffset, chunkThreshold, header, out, codec, false);
+	}
+
+	/**
+	 * @param binaryIndex write the index as a {@link BinaryChunksIndex} rather than JSON.
+	 */
+	public BlockGZIPFileWriter(String filenameBase, String path, long firstRecordOffset, long chunkThreshold, byte[] header,
+							   OutputStream out, BlockCodec codec, boolean binaryIndex) throws IOException {
 		this.filenameBase = filenameBase;
+		this.codec = codec;
+		this.binaryIndex = binaryIndex;
 		this.path = path;
 		this.firstRecordOffset = firstRecordOffset;
 		this.chunkThreshold = chunkThreshold;
@@ -126,44 +256,74 @@ public class BlockGZIPFileWriter implements Closeable {
 		ch.firstOffset = firstRecordOffset;
 		chunks.add(ch);
 
-		// Explicitly truncate the file. On linux and OS X this appears to happen
-		// anyway when opening with FileOutputStream but that behavior is not actually documented
-		// or specified anywhere so let's be rigorous about it.
-		File file = new File(getDataFilePath());
-		if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
-			throw new RetriableException("could not create file " + file);
+		if (out == null) {
+			out = openDataFile();
+		}
+		if (out instanceof ChunkListener) {
+			chunkListener = (ChunkListener) out;
 		}
-		FileOutputStream fos = new FileOutputStream(file);
-		fos.getChannel().truncate(0);
 
 		// Open file for writing and setup
-		this.fileStream = new CountingOutputStream(fos);
+		this.fileStream = new CountingOutputStream(out);
 		initChunkWriter();
 		if (header.length > 0) {
 			// if there is a header, write it as its own gzip chunk
 			// so we know how many bytes to skip
 			gzipStream.write(header);
-			gzipStream.finish();
-			gzipStream = new GZIPOutputStream(fileStream);
+			gzipStream.close();
+			initChunkWriter();
 			// may have written header bytes
 			ch.byteOffset = fileStream.getNumBytesWritten();
 		}
 	}
 
+	private OutputStream openDataFile() throws IOException {
+		File file = new File(getDataFilePath());
+		if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+			throw new RetriableException("could not create file " + file);
+		}
+		// truncates the file if it exists, and buffers compressor output into large writes
+		return new FileChannelOutputStream(file);
+	}
+
 	private void initChunkWriter() throws IOException {
-		gzipStream = new GZIPOutputStream(fileStream);
+		gzipStream = codec.compress(fileStream);
 	}
 
 	private Chunk currentChunk() {
 		return chunks.get(chunks.size() - 1);
 	}
 
+	/**
+	 * Record where every this many records start within each chunk, so a reader can skip to
+	 * them without parsing what comes before. Takes effect from the next write.
+	 *
+	 * @param records 0 to only index the start of each chunk.
+	 */
+	public void setCheckpointInterval(long records) {
+		this.checkpointInterval = records;
+	}
+
+	/**
+	 * Record in the index that the chunks are compressed with this preset dictionary.
+	 *
+	 * @see com.spredfast.kafka.connect.s3.PresetDictionaryCodec
+	 */
+	public void setDictionaryId(long id) {
+		this.dictionaryId = id;
+	}
+
 	public String getDataFileName() {
-		return String.format("%s-%012d.gz", filenameBase, firstRecordOffset);
+		return dataFileName(filenameBase, firstRecordOffset, codec);
+	}
+
+	public static String dataFileName(String filenameBase, long firstRecordOffset, BlockCodec codec) {
+		return String.format("%s-%012d.%s", filenameBase, firstRecordOffset, codec.extension());
 	}
 
 	public String getIndexFileName() {
-		return String.format("%s-%012d.index.json", filenameBase, firstRecordOffset);
+		return String.format("%s-%012d%s", filenameBase, firstRecordOffset,
+			binaryIndex ? BinaryChunksIndex.SUFFIX : BinaryChunksIndex.JSON_SUFFIX);
 	}
 
 	public String getDataFilePath() {
@@ -181,13 +341,54 @@ public class BlockGZIPFileWriter implements Closeable {
 	 * @param recordCount how many records these bytes represent.
 	 */
 	public void write(List<byte[]> toWrite, long recordCount) throws IOException {
-		Chunk ch = currentChunk();
-
 		int rawBytesToWrite = 0;
 		for (byte[] bytes : toWrite) {
 			rawBytesToWrite += bytes.length;
 		}
 
+		Chunk ch = chunkFor(rawBytesToWrite);
+
+		for (byte[] bytes : toWrite) {
+			gzipStream.write(bytes);
+		}
+
+		ch.rawBytes += rawBytesToWrite;
+		rawBytesWritten += rawBytesToWrite;
+		ch.numRecords += recordCount;
+	}
+
+	/**
+	 * Write a single record without allocating anything for it. The record is encoded into a buffer that is
+	 * reused for every record, so chunk boundaries fall exactly where {@link #write(List, long)} would put them.
+	 */
+	public void write(RecordEncoder record) throws IOException {
+		write(record, NO_TIMESTAMP);
+	}
+
+	/**
+	 * @param timestamp the record's timestamp, to index the range of timestamps in each chunk. Or
+	 *                  {@link #NO_TIMESTAMP}.
+	 */
+	public void write(RecordEncoder record, long timestamp) throws IOException {
+		recordBuffer.reset();
+		record.encode(recordBuffer);
+		Chunk ch = chunkFor(recordBuffer.size());
+		recordBuffer.writeTo(gzipStream);
+		ch.rawBytes += recordBuffer.size();
+		rawBytesWritten += recordBuffer.size();
+		ch.numRecords++;
+		ch.timestamp(timestamp);
+		if (recordBuffer.capacity() > RecordBuffer.MAX_RETAINED) {
+			// don't hold on to the memory of one unusually large record
+			recordBuffer = new RecordBuffer();
+		}
+	}
+
+	/**
+	 * @return the chunk to write the given number of raw bytes to, starting a new one if they don't fit.
+	 */
+	private Chunk chunkFor(int rawBytesToWrite) throws IOException {
+		Chunk ch = currentChunk();
 		if ((ch.rawBytes + rawBytesToWrite) > chunkThreshold) {
 			finishChunk();
 			initChunkWriter();
@@ -197,14 +398,11 @@ public class BlockGZIPFileWriter implements Closeable {
 			newCh.byteOffset = ch.byteOffset + ch.compressedByteLength;
 			chunks.add(newCh);
 			ch = newCh;
+		} else if (checkpointInterval > 0 && ch.recordsSinceCheckpoint() >= checkpointInterval) {
+			// the start of a chunk needs no checkpoint
+			ch.checkpoint();
 		}
-
-		for (byte[] bytes : toWrite) {
-			gzipStream.write(bytes);
-		}
-
-		ch.rawBytes += rawBytesToWrite;
-		ch.numRecords += recordCount;
+		return ch;
 	}
 
 	public void delete() {
@@ -223,18 +421,22 @@ public class BlockGZIPFileWriter implements Closeable {
 	private void finishChunk() throws IOException {
 		Chunk ch = currentChunk();
 
-		// Complete GZIP block without closing stream
-		gzipStream.finish();
+		// Complete GZIP block without closing the file
+		gzipStream.close();
 
 		// We can no find out how long this chunk was compressed
 		long bytesWritten = fileStream.getNumBytesWritten();
 		ch.compressedByteLength = bytesWritten - ch.byteOffset;
+
+		if (chunkListener != null) {
+			chunkListener.onChunkComplete();
+		}
 	}
 
 	public void close() throws IOException {
 		// Flush last chunk, updating index
 		finishChunk();
-		gzipStream.close();
+		fileStream.closeFile();
 		// Now close the writer (and the whole stream stack)
 		writeIndex();
 	}
@@ -245,8 +447,30 @@ public class BlockGZIPFileWriter implements Closeable {
 			throw new IOException("Cannot create index " + indexFile);
 		}
 
-		objectMapper.writer().writeValue(indexFile, ChunksIndex.of(chunks.stream()
-			.map(Chunk::toJson).collect(toList())));
+		List<ChunkDescriptor> descriptors = chunks.stream().map(Chunk::toJson).collect(toList());
+		descriptors.forEach(chunk -> chunk.dictionary_id = dictionaryId);
+		if (binaryIndex) {
+			try (OutputStream out = new FileOutputStream(indexFile)) {
+				BinaryChunksIndex.of(descriptors).writeTo(out);
+			}
+		} else {
+			objectMapper.writer().writeValue(indexFile, ChunksIndex.of(descriptors));
+		}
+	}
+
+	/**
+	 * @return the same as {@link #getTotalUncompressedSize()}, without going through the chunks.
+	 */
+	public long getRawBytesWritten() {
+		return rawBytesWritten;
+	}
+
+	/**
+	 * @return the bytes written to the data file so far, i.e., after compression. Blocks still in the compressor
+	 * are not counted until they are flushed.
+	 */
+	public long getBytesWritten() {
+		return fileStream.getNumBytesWritten();
 	}
 
 	public int getTotalUncompressedSize() {
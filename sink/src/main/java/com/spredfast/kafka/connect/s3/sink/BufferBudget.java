@@ -0,0 +1,128 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import static java.util.stream.Collectors.toList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Bounds the bytes a task buffers locally, across the files being written and the files waiting to be uploaded.
+ * <p>
+ * Once the total reaches the high water mark, the partitions buffering the most are paused, until those still
+ * consuming account for less than the low water mark. Everything is resumed once the total drops below the low water
+ * mark. Without it, a skewed or lagging topic can fill local.buffer.dir.
+ * <p>
+ * update/forget are expected to be called from the task thread only. queued/uploaded may be called from any thread.
+ */
+public class BufferBudget {
+
+	private final long highWaterMark;
+	private final long lowWaterMark;
+
+	// bytes handed off for upload but not uploaded yet, per partition
+	private final Map<TopicPartition, AtomicLong> queued = new ConcurrentHashMap<>();
+
+	private final Set<TopicPartition> paused = new LinkedHashSet<>();
+
+	// as of the last update, for gauges
+	private volatile Map<TopicPartition, Long> buffered = Collections.emptyMap();
+	private volatile long total;
+
+	/**
+	 * @param highWaterMark bytes at which partitions are paused.
+	 * @param lowWaterMark  bytes below which they are resumed.
+	 */
+	public BufferBudget(long highWaterMark, long lowWaterMark) {
+		this.highWaterMark = highWaterMark;
+		this.lowWaterMark = Math.min(lowWaterMark, highWaterMark);
+	}
+
+	public void queued(TopicPartition tp, long bytes) {
+		queued.computeIfAbsent(tp, t -> new AtomicLong()).addAndGet(bytes);
+	}
+
+	public void uploaded(TopicPartition tp, long bytes) {
+		queued(tp, -bytes);
+	}
+
+	/**
+	 * @param assigned the partitions that may be paused.
+	 * @param open     the bytes in each partition's open file.
+	 * @param pause    called with partitions to pause.
+	 * @param resume   called with partitions to resume.
+	 */
+	public void update(Collection<TopicPartition> assigned, Map<TopicPartition, Long> open,
+					   Consumer<Collection<TopicPartition>> pause, Consumer<Collection<TopicPartition>> resume) {
+		Map<TopicPartition, Long> bytes = new HashMap<>(open);
+		// includes revoked partitions whose uploads are still running: their files are still here
+		queued.forEach((tp, queuedBytes) -> bytes.merge(tp, queuedBytes.get(), Long::sum));
+		long total = bytes.values().stream().mapToLong(Long::longValue).sum();
+		this.buffered = bytes;
+		this.total = total;
+
+		if (!paused.isEmpty() && total < lowWaterMark) {
+			List<TopicPartition> resumed = new ArrayList<>(paused);
+			paused.clear();
+			resume.accept(resumed);
+			return;
+		}
+		if (total < highWaterMark) {
+			return;
+		}
+		long consuming = total - paused.stream().mapToLong(tp -> bytes.getOrDefault(tp, 0L)).sum();
+		List<TopicPartition> hottest = assigned.stream()
+			.filter(tp -> !paused.contains(tp))
+			.sorted(Comparator.comparingLong((TopicPartition tp) -> bytes.getOrDefault(tp, 0L)).reversed())
+			.collect(toList());
+		List<TopicPartition> pausing = new ArrayList<>();
+		for (TopicPartition tp : hottest) {
+			if (consuming < lowWaterMark) {
+				break;
+			}
+			pausing.add(tp);
+			consuming -= bytes.getOrDefault(tp, 0L);
+		}
+		if (!pausing.isEmpty()) {
+			paused.addAll(pausing);
+			pause.accept(pausing);
+		}
+	}
+
+	/**
+	 * Stop tracking the given partitions as paused, e.g., because they have been revoked. Their queued bytes are
+	 * still counted until they are uploaded.
+	 */
+	public void forget(Collection<TopicPartition> partitions) {
+		paused.removeAll(partitions);
+	}
+
+	public Set<TopicPartition> paused() {
+		return Collections.unmodifiableSet(paused);
+	}
+
+	/**
+	 * @return the bytes the partition was buffering as of the last update.
+	 */
+	public long bufferedBytes(TopicPartition tp) {
+		return buffered.getOrDefault(tp, 0L);
+	}
+
+	/**
+	 * @return the bytes the task was buffering as of the last update.
+	 */
+	public long totalBytes() {
+		return total;
+	}
+}
@@ -0,0 +1,57 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Fixed size direct buffers, shared by all the partitions of a task, up to a total memory budget.
+ * <p>
+ * Buffers are allocated lazily and kept for reuse once released, since direct memory is only freed by GC.
+ * The JVM's -XX:MaxDirectMemorySize must leave room for the budget. Thread safe.
+ */
+public class DirectBufferPool {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+	private final int segmentSize;
+	private final int maxSegments;
+	private final Deque<ByteBuffer> free = new ArrayDeque<>();
+	private int allocated;
+	private int inUse;
+
+	public DirectBufferPool(long budgetBytes) {
+		this(budgetBytes, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public DirectBufferPool(long budgetBytes, int segmentSize) {
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.min(Integer.MAX_VALUE, budgetBytes / segmentSize);
+	}
+
+	/**
+	 * @return an empty buffer, or null if the whole budget is in use.
+	 */
+	public synchronized ByteBuffer tryAcquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			if (allocated >= maxSegments) {
+				return null;
+			}
+			buffer = ByteBuffer.allocateDirect(segmentSize);
+			allocated++;
+		}
+		inUse++;
+		return buffer;
+	}
+
+	public synchronized void release(ByteBuffer buffer) {
+		buffer.clear();
+		free.push(buffer);
+		inUse--;
+	}
+
+	public synchronized long bytesInUse() {
+		return (long) inUse * segmentSize;
+	}
+}
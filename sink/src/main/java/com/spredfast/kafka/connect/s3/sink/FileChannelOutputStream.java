@@ -0,0 +1,147 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a local file through a {@link FileChannel}, in large page-aligned writes, so that compressors
+ * writing a few hundred bytes at a time don't turn every write into a syscall.
+ * <p>
+ * The file can be preallocated, which reserves its size up front (most file systems keep it sparse) rather than
+ * extending it on every write. In memory-mapped mode, bytes are copied into mappings of the file instead, one
+ * window at a time. Either way, the file is truncated to exactly what was written when the stream is closed.
+ */
+public class FileChannelOutputStream extends OutputStream {
+
+	public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+	static final int PAGE_SIZE = 4096;
+	static final long DEFAULT_MAP_WINDOW = 64 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final boolean mmap;
+	private final long mapWindow;
+	private ByteBuffer buffer;
+	// where the buffer starts in the file, when buffering. where the mapping starts, when memory mapped.
+	private long position;
+	private boolean closed;
+
+	/**
+	 * @param bufferSize  how much to write at a time. Rounded up to a whole number of pages.
+	 * @param preallocate bytes to reserve for the file up front, 0 for none. Also the size of each mapping when
+	 *                    memory mapped.
+	 * @param mmap        write through memory mappings rather than a buffer.
+	 */
+	public FileChannelOutputStream(File file, int bufferSize, long preallocate, boolean mmap) throws IOException {
+		this.mmap = mmap;
+		// mapping for write needs read access too
+		this.channel = mmap
+			? FileChannel.open(file.toPath(), CREATE, READ, WRITE, TRUNCATE_EXISTING)
+			: FileChannel.open(file.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+		try {
+			if (mmap) {
+				mapWindow = preallocate > 0 ? preallocate : DEFAULT_MAP_WINDOW;
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapWindow);
+			} else {
+				mapWindow = 0;
+				int aligned = (Math.max(bufferSize, 1) + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+				buffer = ByteBuffer.allocateDirect(aligned);
+				if (preallocate > 0) {
+					channel.write(ByteBuffer.wrap(new byte[1]), preallocate - 1);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public FileChannelOutputStream(File file) throws IOException {
+		this(file, DEFAULT_BUFFER_SIZE, 0, false);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (!mmap && buffer.position() == 0 && len >= buffer.capacity()) {
+			// nothing to gain from copying it into the buffer first
+			writeFully(ByteBuffer.wrap(b, off, len));
+			return;
+		}
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Make room in the buffer: write it out, or move on to the next mapping.
+	 */
+	private void drain() throws IOException {
+		if (mmap) {
+			position += buffer.position();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, mapWindow);
+		} else {
+			buffer.flip();
+			writeFully(buffer);
+			buffer.clear();
+		}
+	}
+
+	private void writeFully(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			position += channel.write(bytes, position);
+		}
+	}
+
+	/**
+	 * @return how many bytes have been written to the stream.
+	 */
+	public long size() {
+		return position + buffer.position();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (!mmap && buffer.position() > 0) {
+			drain();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flush();
+			long size = size();
+			if (channel.size() > size) {
+				// drop the preallocated or mapped space we didn't use
+				channel.truncate(size);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+}
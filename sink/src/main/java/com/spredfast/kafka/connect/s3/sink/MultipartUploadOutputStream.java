@@ -0,0 +1,179 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Streams a file to S3 as a multipart upload, one part per completed chunk.
+ * <p>
+ * Bytes are buffered in memory until {@link #onChunkComplete()} is called with at least
+ * {@link #MIN_PART_SIZE} buffered (S3 rejects smaller parts, except the last one), at which point
+ * the buffer becomes the next part. {@link #close()} submits whatever is left as the last part, and
+ * {@link #complete()} waits for all parts and completes the upload, after which the object is visible in S3.
+ * <p>
+ * If the whole file fits in a single part, it is written with a single PUT instead.
+ */
+public class MultipartUploadOutputStream extends OutputStream implements BlockGZIPFileWriter.ChunkListener {
+
+	private static final Logger log = LoggerFactory.getLogger(MultipartUploadOutputStream.class);
+
+	public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	private final AmazonS3 s3Client;
+	private final String bucket;
+	private final String key;
+	private final Executor executor;
+
+	private PartBuffer buffer = new PartBuffer();
+	private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+	private String uploadId;
+	private PartBuffer lastPart;
+	private boolean closed;
+	private boolean completed;
+
+	/**
+	 * @param executor where to upload parts. Parts are uploaded on the writing thread if null.
+	 */
+	public MultipartUploadOutputStream(AmazonS3 s3Client, String bucket, String key, Executor executor) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.key = key;
+		this.executor = executor == null ? Runnable::run : executor;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		buffer.write(b, off, len);
+	}
+
+	@Override
+	public void onChunkComplete() throws IOException {
+		if (buffer.size() >= MIN_PART_SIZE) {
+			uploadPart();
+		}
+	}
+
+	private void uploadPart() throws IOException {
+		if (uploadId == null) {
+			try {
+				uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+			} catch (Exception e) {
+				throw new IOException("Failed to start multipart upload of " + key, e);
+			}
+			log.debug("Started multipart upload {} of {}", uploadId, key);
+		}
+		PartBuffer part = buffer;
+		buffer = new PartBuffer();
+		int partNumber = parts.size() + 1;
+		UploadPartRequest request = new UploadPartRequest()
+			.withBucketName(bucket)
+			.withKey(key)
+			.withUploadId(uploadId)
+			.withPartNumber(partNumber)
+			.withInputStream(part.asInput())
+			.withPartSize(part.size());
+		parts.add(CompletableFuture.supplyAsync(() -> s3Client.uploadPart(request).getPartETag(), executor));
+	}
+
+	/**
+	 * Submits the remaining bytes for upload. Call {@link #complete()} to wait for them to land.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (uploadId == null) {
+			// never needed more than one part. a plain PUT is cheaper
+			lastPart = buffer;
+		} else if (buffer.size() > 0 || parts.isEmpty()) {
+			uploadPart();
+		}
+		buffer = null;
+	}
+
+	/**
+	 * Wait for all parts and complete the upload. On failure, the multipart upload is aborted.
+	 */
+	public void complete() throws IOException {
+		if (completed) {
+			return;
+		}
+		close();
+		try {
+			if (lastPart != null) {
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setContentLength(lastPart.size());
+				s3Client.putObject(new PutObjectRequest(bucket, key, lastPart.asInput(), metadata));
+				lastPart = null;
+			} else {
+				List<PartETag> etags = new ArrayList<>(parts.size());
+				for (CompletableFuture<PartETag> part : parts) {
+					etags.add(part.join());
+				}
+				s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+				log.debug("Completed multipart upload of {} in {} parts", key, etags.size());
+			}
+			completed = true;
+		} catch (Exception e) {
+			abort();
+			throw new IOException("Failed to upload " + key, e instanceof CompletionException ? e.getCause() : e);
+		}
+	}
+
+	/**
+	 * Discard anything uploaded so far.
+	 */
+	public void abort() {
+		closed = true;
+		buffer = null;
+		lastPart = null;
+		if (uploadId != null && !completed) {
+			try {
+				s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+			} catch (Exception e) {
+				log.warn("Failed to abort multipart upload {} of {}", uploadId, key, e);
+			}
+			uploadId = null;
+		}
+	}
+
+	// avoids copying the buffered bytes when handing them to the SDK
+	private static class PartBuffer extends ByteArrayOutputStream {
+		PartBuffer() {
+			super(1024 * 1024);
+		}
+
+		ByteArrayInputStream asInput() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+}
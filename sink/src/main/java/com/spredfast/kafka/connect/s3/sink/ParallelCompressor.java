@@ -0,0 +1,141 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.spredfast.kafka.connect.s3.BlockCodec;
+
+/**
+ * Compresses chunks on a pool of threads, pigz style.
+ * <p>
+ * The raw bytes of a chunk are cut into blocks, and each block is compressed on its own by the delegate codec.
+ * The compressed blocks are written out in order, so a chunk becomes a sequence of complete members
+ * (e.g., gzip members) that decompresses as if it were one, and the chunk still starts and ends
+ * at the same places as before. Files are read back with the delegate codec.
+ */
+public class ParallelCompressor implements BlockCodec {
+
+	private final BlockCodec delegate;
+	private final ExecutorService executor;
+	private final int blockSize;
+	private final int maxPendingBlocks;
+
+	/**
+	 * @param blockSize        how many raw bytes to compress in each block.
+	 * @param maxPendingBlocks how many blocks a single chunk may have waiting to be compressed before writes block.
+	 */
+	public ParallelCompressor(BlockCodec delegate, ExecutorService executor, int blockSize, int maxPendingBlocks) {
+		this.delegate = delegate;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.maxPendingBlocks = maxPendingBlocks;
+	}
+
+	@Override
+	public String name() {
+		return delegate.name();
+	}
+
+	@Override
+	public String extension() {
+		return delegate.extension();
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException {
+		return new BlockStream(out);
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) throws IOException {
+		return delegate.decompress(in);
+	}
+
+	private byte[] compressBlock(byte[] raw, int length) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+		try (OutputStream stream = delegate.compress(compressed)) {
+			stream.write(raw, 0, length);
+		}
+		return compressed.toByteArray();
+	}
+
+	private class BlockStream extends OutputStream {
+		private final OutputStream out;
+		private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+		private byte[] block = new byte[blockSize];
+		private int count;
+		private boolean submittedAny;
+
+		BlockStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			block[count++] = (byte) b;
+			if (count == blockSize) {
+				submit();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, blockSize - count);
+				System.arraycopy(b, off, block, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == blockSize) {
+					submit();
+				}
+			}
+		}
+
+		private void submit() throws IOException {
+			final byte[] raw = block;
+			final int length = count;
+			block = new byte[blockSize];
+			count = 0;
+			submittedAny = true;
+			pending.add(executor.submit(() -> compressBlock(raw, length)));
+
+			// write out whatever is already done, and wait if we are too far ahead of the pool
+			while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > maxPendingBlocks)) {
+				writeNext();
+			}
+		}
+
+		private void writeNext() throws IOException {
+			try {
+				out.write(pending.poll().get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing");
+			} catch (ExecutionException e) {
+				throw new IOException("Failed to compress block", e.getCause());
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			// an empty chunk still needs to be a valid (empty) compressed member
+			if (count > 0 || !submittedAny) {
+				submit();
+			}
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+			block = null;
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+/**
+ * Decides when a partition's file is closed and uploaded, independently of Connect's flushes.
+ * <p>
+ * A file is rotated as soon as it reaches any of the configured limits. A limit of 0 is disabled.
+ * Files smaller than the minimum size are kept open across commits (where that is safe), unless they are
+ * older than the maximum age.
+ */
+public class RotationPolicy {
+
+	public static final RotationPolicy NONE = new RotationPolicy(0, 0, 0, 0);
+
+	private final long maxBytes;
+	private final long maxRecords;
+	private final long maxAgeMs;
+	private final long minBytes;
+
+	/**
+	 * @param maxBytes   uncompressed bytes after which a file is rotated.
+	 * @param maxRecords records after which a file is rotated.
+	 * @param maxAgeMs   milliseconds after its first record after which a file is rotated.
+	 * @param minBytes   uncompressed bytes a file must reach before it is uploaded at a commit.
+	 */
+	public RotationPolicy(long maxBytes, long maxRecords, long maxAgeMs, long minBytes) {
+		this.maxBytes = maxBytes;
+		this.maxRecords = maxRecords;
+		this.maxAgeMs = maxAgeMs;
+		this.minBytes = minBytes;
+	}
+
+	public boolean shouldRotate(long bytes, long records) {
+		return (maxBytes > 0 && bytes >= maxBytes) || (maxRecords > 0 && records >= maxRecords);
+	}
+
+	public boolean isExpired(long ageMs) {
+		return maxAgeMs > 0 && ageMs >= maxAgeMs;
+	}
+
+	public boolean hasMaxAge() {
+		return maxAgeMs > 0;
+	}
+
+	/**
+	 * @return true if a file should stay open at a commit rather than being uploaded.
+	 */
+	public boolean keepOpen(long bytes, long ageMs) {
+		return bytes < minBytes && !isExpired(ageMs);
+	}
+}
@@ -1,19 +1,34 @@
 package com.spredfast.kafka.connect.s3.sink;
 
 import static java.util.Optional.ofNullable;
-import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
-import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.connect.errors.ConnectException;
 import org.apache.kafka.connect.errors.IllegalWorkerStateException;
@@ -24,13 +39,19 @@ import org.apache.kafka.connect.storage.Converter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.transfer.TransferManager;
 import com.spredfast.kafka.connect.s3.AlreadyBytesConverter;
+import com.spredfast.kafka.connect.s3.BlockCodec;
 import com.spredfast.kafka.connect.s3.Configure;
 import com.spredfast.kafka.connect.s3.Constants;
+import com.spredfast.kafka.connect.s3.KeyLayout;
 import com.spredfast.kafka.connect.s3.Metrics;
+import com.spredfast.kafka.connect.s3.PooledGzipCodec;
+import com.spredfast.kafka.connect.s3.PresetDictionaryCodec;
+import com.spredfast.kafka.connect.s3.RefCountedCache;
 import com.spredfast.kafka.connect.s3.S3;
 import com.spredfast.kafka.connect.s3.S3RecordFormat;
-import com.spredfast.kafka.connect.s3.S3RecordsWriter;
+import com.spredfast.kafka.connect.s3.S3RecordsStreamWriter;
 
 
 public class S3SinkTask extends SinkTask {
@@ -49,12 +70,74 @@ public class S3SinkTask extends SinkTask {
 
 	private Converter valueConverter;
 
+	// the converters pass bytes through as they are, so records are encoded without calling them
+	private boolean rawKeys;
+	private boolean rawValues;
+
 	private S3RecordFormat recordFormat;
 
 	private Metrics metrics;
 
 	private Map<String, String> tags;
 
+	// null unless uploads are asynchronous
+	private UploadQueue uploads;
+
+	// null unless uploads are durable
+	private UploadJournal journal;
+	private long maxQueuedBytes;
+	private long retryBackoffMs;
+
+	// null unless synchronous flushes upload more than one partition at a time
+	private ExecutorService flushExecutor;
+
+	private boolean streaming;
+
+	private boolean coalesce;
+	private long coalesceMaxBytes;
+
+	// uploads parts of streamed files. null unless streaming
+	private ExecutorService partExecutor;
+
+	private BlockCodec codec;
+
+	// with compression zlib-dict, the dictionary for every file, if one was configured
+	private byte[] configuredDictionary;
+	private boolean configuredDictionaryUploaded;
+	// otherwise, how many of each partition's first records become the dictionary for its later files
+	private int dictionarySampleRecords;
+	// sampled dictionaries that are in S3, and those not yet
+	private final Map<TopicPartition, byte[]> dictionaries = new HashMap<>();
+	private final Map<TopicPartition, byte[]> dictionarySamples = new HashMap<>();
+
+	// shared by all partitions. null unless compressing in parallel
+	private ExecutorService compressionExecutor;
+	private int compressionThreads;
+	private int compressionBlockSize;
+
+	private RotationPolicy rotation;
+
+	// null unless buffering files in memory
+	private DirectBufferPool memoryPool;
+
+	// null unless buffer.max.bytes is set
+	private BufferBudget budget;
+
+	private int localWriteSize;
+	private long localPreallocate;
+	private boolean localMmap;
+
+	private boolean binaryIndex;
+
+	private boolean recoverOffsets;
+
+	// the offsets recovered on open, until the partitions' first records show the consumer is past them
+	private final Map<TopicPartition, Long> archivedUpTo = new HashMap<>();
+	private int recoverThreads;
+	private long checkpointInterval;
+	private RefCountedCache.Lease<AmazonS3> client;
+	private RefCountedCache.Lease<TransferManager> transfers;
+
 	@Override
 	public String version() {
 		return Constants.VERSION;
@@ -71,20 +154,148 @@ public class S3SinkTask extends SinkTask {
 
 		keyConverter = ofNullable(Configure.buildConverter(config, "key.converter", true, null));
 		valueConverter = Configure.buildConverter(config, "value.converter", false, AlreadyBytesConverter.class);
+		rawKeys = keyConverter.filter(AlreadyBytesConverter::isIdentity).isPresent();
+		rawValues = AlreadyBytesConverter.isIdentity(valueConverter);
 
 		String bucket = configGet("s3.bucket")
 			.filter(s -> !s.isEmpty())
 			.orElseThrow(() -> new ConnectException("S3 bucket must be configured"));
 		String prefix = configGet("s3.prefix")
 			.orElse("");
-		AmazonS3 s3Client = S3.s3client(config);
+		client = S3.sharedClient(config);
+		AmazonS3 s3Client = client.get();
+
+		try {
+			transfers = TransferManagers.acquire(s3Client, config);
+		} catch (IllegalArgumentException e) {
+			throw new ConnectException(e.getMessage());
+		}
+		s3 = new S3Writer(bucket, prefix, s3Client, transfers.get());
+		try {
+			configGet("s3.key.layout").map(KeyLayout::new).ifPresent(s3::setKeyLayout);
+		} catch (IllegalArgumentException e) {
+			throw new ConnectException(e.getMessage());
+		}
+		recoverOffsets = configGet("offsets.recover").map(Boolean::parseBoolean).orElse(false);
+		recoverThreads = configGet("offsets.recover.threads").map(Integer::parseInt).orElse(10);
+
+		String cursors = configGet("cursor.manifest").orElse("partition");
+		if ("task".equals(cursors)) {
+			s3.useCursorManifest(name() + "-" + configGet("task.id")
+				.orElseThrow(() -> new ConnectException("cursor.manifest=task needs a task.id, set by S3SinkConnector")));
+		} else if (!"partition".equals(cursors)) {
+			throw new ConnectException("Unknown cursor.manifest " + cursors + ". Expected partition or task");
+		}
 
-		s3 = new S3Writer(bucket, prefix, s3Client);
+		coalesce = configGet("upload.coalesce").map(Boolean::parseBoolean).orElse(false);
+		if (coalesce) {
+			s3.useCoalescing(name() + "-" + configGet("task.id")
+				.orElseThrow(() -> new ConnectException("upload.coalesce needs a task.id, set by S3SinkConnector")));
+			coalesceMaxBytes = configGet("upload.coalesce.max.bytes").map(Long::parseLong).orElse(64L * 1024 * 1024);
+		}
 
 		metrics = Configure.metrics(props);
 		tags = Configure.parseTags(props.get("metrics.tags"));
 		tags.put("connector_name", name());
 
+		int uploadThreads = configGet("upload.threads").map(Integer::parseInt).orElse(1);
+		ThreadFactory uploadThreadFactory = r -> {
+			Thread thread = new Thread(r, name() + "-s3-upload");
+			thread.setDaemon(true);
+			return thread;
+		};
+		boolean durable = configGet("upload.durable").map(Boolean::parseBoolean).orElse(false);
+		if (durable) {
+			retryBackoffMs = configGet("upload.retry.backoff.ms").map(Long::parseLong).orElse(1000L);
+			long maxRetryBackoffMs = configGet("upload.retry.backoff.max.ms").map(Long::parseLong).orElse(60_000L);
+			uploads = new UploadQueue(Executors.newFixedThreadPool(uploadThreads, uploadThreadFactory), retryBackoffMs, maxRetryBackoffMs);
+			maxQueuedBytes = configGet("upload.queue.max.bytes").map(Long::parseLong).orElse(0L);
+			File dir = new File(configGet("local.buffer.dir")
+				.orElseThrow(() -> new ConnectException("No local buffer file path configured")), "upload-queue");
+			try {
+				journal = new UploadJournal(dir);
+			} catch (IOException e) {
+				throw new ConnectException("Could not open the upload queue in " + dir, e);
+			}
+			metrics.gauge("uploadQueueBytes", tags, journal::bytes);
+		} else if (configGet("upload.async").map(Boolean::parseBoolean).orElse(false)) {
+			uploads = new UploadQueue(Executors.newFixedThreadPool(uploadThreads, uploadThreadFactory));
+		} else if (uploadThreads > 1) {
+			flushExecutor = Executors.newFixedThreadPool(uploadThreads, uploadThreadFactory);
+		}
+		if (durable && (configGet("upload.streaming").isPresent() || configGet("local.buffer.memory").isPresent())) {
+			// queued files have to be on disk
+			log.warn("{} upload.durable ignores upload.streaming and local.buffer.memory", name());
+		}
+		if (coalesce && configGet("upload.streaming").isPresent()) {
+			// files are packed together once they are complete
+			log.warn("{} upload.coalesce ignores upload.streaming", name());
+		}
+		streaming = !durable && !coalesce && configGet("upload.streaming").map(Boolean::parseBoolean).orElse(false);
+		if (streaming) {
+			partExecutor = Executors.newFixedThreadPool(uploadThreads, uploadThreadFactory);
+		}
+
+		localWriteSize = configGet("local.buffer.write.size").map(Integer::parseInt).orElse(FileChannelOutputStream.DEFAULT_BUFFER_SIZE);
+		localPreallocate = configGet("local.buffer.preallocate").map(Long::parseLong).orElse(0L);
+		localMmap = configGet("local.buffer.mmap").map(Boolean::parseBoolean).orElse(false);
+
+		long memoryBudget = configGet("local.buffer.memory").map(Long::parseLong).orElse(0L);
+		if (memoryBudget > 0 && !streaming && !durable) {
+			memoryPool = new DirectBufferPool(memoryBudget);
+			metrics.gauge("bufferMemoryUsed", tags, memoryPool::bytesInUse);
+		}
+
+		long maxBuffered = configGet("buffer.max.bytes").map(Long::parseLong).orElse(0L);
+		if (maxBuffered > 0) {
+			budget = new BufferBudget(maxBuffered, configGet("buffer.resume.bytes").map(Long::parseLong).orElse(maxBuffered / 2));
+			metrics.gauge("bufferedBytes", tags, budget::totalBytes);
+		}
+
+		String indexFormat = configGet("index.format").orElse("json");
+		if (!"json".equals(indexFormat) && !"binary".equals(indexFormat)) {
+			throw new ConnectException("Unknown index.format " + indexFormat + ". Expected json or binary");
+		}
+		binaryIndex = "binary".equals(indexFormat);
+		checkpointInterval = configGet("index.checkpoint.records").map(Long::parseLong).orElse(0L);
+
+		codec = configGet("compression").map(BlockCodec::forName).orElse(BlockCodec.GZIP);
+		if (codec == BlockCodec.GZIP) {
+			// same output as BlockCodec.GZIP, without a new Deflater for every chunk
+			codec = PooledGzipCodec.from(configGet("compression.level").orElse("DEFAULT"),
+				configGet("compression.strategy").orElse("DEFAULT"));
+		} else if (codec == BlockCodec.ZLIB_DICT) {
+			codec = PresetDictionaryCodec.from(configGet("compression.level").orElse("DEFAULT"));
+			Optional<String> dictionaryFile = configGet("compression.dictionary");
+			if (dictionaryFile.isPresent()) {
+				try {
+					configuredDictionary = PresetDictionaryCodec.trim(Files.readAllBytes(Paths.get(dictionaryFile.get())));
+				} catch (IOException e) {
+					throw new ConnectException("Could not read compression.dictionary " + dictionaryFile.get(), e);
+				}
+				if (configuredDictionary == null) {
+					throw new ConnectException("compression.dictionary " + dictionaryFile.get() + " is empty");
+				}
+			} else {
+				dictionarySampleRecords = configGet("compression.dictionary.sample.records").map(Integer::parseInt).orElse(1000);
+			}
+		}
+		compressionThreads = configGet("compression.threads").map(Integer::parseInt).orElse(1);
+		if (compressionThreads > 1) {
+			compressionExecutor = Executors.newFixedThreadPool(compressionThreads, r -> {
+				Thread thread = new Thread(r, name() + "-compression");
+				thread.setDaemon(true);
+				return thread;
+			});
+			compressionBlockSize = configGet("compression.block.size").map(Integer::parseInt).orElse(1024 * 1024);
+		}
+
+		rotation = new RotationPolicy(
+			configGet("rotation.bytes").map(Long::parseLong).orElse(0L),
+			configGet("rotation.records").map(Long::parseLong).orElse(0L),
+			configGet("rotation.interval.ms").map(Long::parseLong).orElse(0L),
+			configGet("rotation.min.bytes").map(Long::parseLong).orElse(0L));
+
 		// Recover initial assignments
 		open(context.assignment());
 	}
@@ -96,25 +307,144 @@ public class S3SinkTask extends SinkTask {
 	@Override
 	public void stop() throws ConnectException {
 		// ensure we delete our temp files
-		for (PartitionWriter writer : partitions.values()) {
+		for (PartitionWriter writer : new ArrayList<>(partitions.values())) {
 			log.debug("{} Stopping - Deleting temp file {}", name(), writer.getDataFilePath());
 			writer.delete();
 		}
+		if (uploads != null) {
+			uploads.close();
+		}
+		if (flushExecutor != null) {
+			flushExecutor.shutdown();
+		}
+		if (partExecutor != null) {
+			partExecutor.shutdown();
+		}
+		if (compressionExecutor != null) {
+			compressionExecutor.shutdown();
+		}
+		if (codec instanceof PooledGzipCodec) {
+			((PooledGzipCodec) codec).close();
+		} else if (codec instanceof PresetDictionaryCodec) {
+			((PresetDictionaryCodec) codec).close();
+		}
+		if (transfers != null) {
+			transfers.close();
+		}
+		if (client != null) {
+			client.close();
+		}
 	}
 
 	@Override
 	public void put(Collection<SinkRecord> records) throws ConnectException {
-		records.stream().collect(groupingBy(record -> new TopicPartition(record.topic(), record.kafkaPartition()))).forEach((tp, rs) -> {
-			long firstOffset = rs.get(0).kafkaOffset();
-			long lastOffset = rs.get(rs.size() - 1).kafkaOffset();
+		if (journal != null && maxQueuedBytes > 0 && journal.bytes() >= maxQueuedBytes) {
+			// Connect pauses consumption and hands us the same records again after the timeout
+			context.timeout(retryBackoffMs);
+			throw new RetriableException("Upload queue is full: " + journal.bytes() + " bytes waiting for S3");
+		}
+		Set<TopicPartition> rewound = rewindFailedUploads();
+		// records arrive in runs from the same partition, so the writer is only looked up when the partition changes.
+		// nothing is allocated per record on the way to the writer
+		String topic = null;
+		int partition = -1;
+		PartitionWriter writer = null;
+		for (SinkRecord record : records) {
+			if (topic == null || record.kafkaPartition() != partition || !record.topic().equals(topic)) {
+				if (writer != null) {
+					writer.endRun();
+				}
+				topic = record.topic();
+				partition = record.kafkaPartition();
+				TopicPartition tp = new TopicPartition(topic, partition);
+				if (!rewound.contains(tp) && skipArchived(tp, record.kafkaOffset())) {
+					rewound.add(tp);
+				}
+				// rewound partitions will be redelivered from the rewound offset
+				writer = rewound.contains(tp) ? null : partitions.computeIfAbsent(tp, t -> initWriter(t, record.kafkaOffset()));
+				if (writer != null) {
+					writer.beginRun();
+				}
+			}
+			if (writer != null) {
+				writer.write(record);
+				if (rotation.shouldRotate(writer.rawBytes(), writer.recordCount)) {
+					writer.endRun();
+					if (!rotate(writer)) {
+						rewound.add(writer.tp);
+					}
+					// look the partition up again for the next record
+					writer = null;
+					topic = null;
+				}
+			}
+		}
+		if (writer != null) {
+			writer.endRun();
+		}
+		if (rotation.hasMaxAge()) {
+			for (PartitionWriter expired : new ArrayList<>(partitions.values())) {
+				if (rotation.isExpired(expired.ageMs())) {
+					rotate(expired);
+				}
+			}
+		}
+		if (budget != null) {
+			// put is called even when every partition is paused, so they are resumed here too
+			budget.update(context.assignment(), openBytes(), this::pause, tps -> {
+				log.info("{} buffering {} bytes. Resuming {}", name(), budget.totalBytes(), tps);
+				context.resume(tps.toArray(new TopicPartition[0]));
+			});
+		}
+	}
+
+	/**
+	 * Pause partitions that are over the buffer budget. With an upload queue, their files are handed off now so that
+	 * it drains. Otherwise they are left for the next flush, rather than uploading inside put.
+	 */
+	private void pause(Collection<TopicPartition> tps) {
+		log.info("{} buffering {} bytes. Pausing {}", name(), budget.totalBytes(), tps);
+		context.pause(tps.toArray(new TopicPartition[0]));
+		if (uploads == null) {
+			return;
+		}
+		for (TopicPartition tp : tps) {
+			PartitionWriter writer = partitions.get(tp);
+			if (writer != null) {
+				rotate(writer);
+			}
+		}
+	}
 
-			log.debug("{} received {} records for {} to archive. Last offset {}", name(), rs.size(), tp,
-				lastOffset);
+	private Map<TopicPartition, Long> openBytes() {
+		Map<TopicPartition, Long> bytes = new HashMap<>();
+		partitions.forEach((tp, writer) -> bytes.put(tp, writer.bufferedBytes()));
+		return bytes;
+	}
 
-			PartitionWriter writer = partitions.computeIfAbsent(tp,
-				t -> initWriter(t, firstOffset));
-			writer.writeAll(rs);
-		});
+	/**
+	 * Close and upload a file that has reached a rotation limit, without waiting for Connect to flush.
+	 * The upload is asynchronous if upload.async is set. If the file can't be finished or uploaded, its records
+	 * are consumed again.
+	 *
+	 * @return false if the partition was rewound.
+	 */
+	private boolean rotate(PartitionWriter writer) {
+		log.debug("{} rotating {} after {} records, {} bytes", name(), writer.tp, writer.recordCount, writer.rawBytes());
+		try {
+			if (uploads != null) {
+				partitions.remove(writer.tp, writer);
+				writer.handOff();
+			} else {
+				writer.done();
+			}
+			return true;
+		} catch (RuntimeException e) {
+			log.warn("{} failed to rotate {}. Rewinding to offset {}", name(), writer.tp, writer.firstOffset, e);
+			writer.delete();
+			context.offset(writer.tp, writer.firstOffset);
+			return false;
+		}
 	}
 
 	@Override
@@ -125,14 +455,287 @@ public class S3SinkTask extends SinkTask {
 
 		// XXX the docs for flush say that the offsets given are the same as if we tracked the offsets
 		// of the records given to put, so we should just write whatever we have in our files
-		offsets.keySet().stream()
-			.map(partitions::get)
-			.filter(p -> p != null) // TODO error/warn?
-			.forEach(PartitionWriter::done);
+		if (uploads != null) {
+			// Connect commits the given offsets as soon as we return, so everything must be in S3 first.
+			handOff(offsets.keySet());
+			uploads.awaitAll();
+			Map<TopicPartition, Long> failures = uploads.failures();
+			if (!failures.isEmpty()) {
+				throw new RetriableException("Failed to upload " + failures.keySet());
+			}
+		} else {
+			flushAll(offsets.keySet().stream()
+				.map(partitions::get)
+				.filter(p -> p != null) // TODO error/warn?
+				.collect(toList()));
+		}
+		flushCursors();
 
 		timer.stop();
 	}
 
+	/**
+	 * Upload the given partitions, up to upload.threads at a time. Returns once all of them are in S3,
+	 * or throws as soon as the first one fails. Partitions that were not uploaded keep their files
+	 * so the next flush can try again.
+	 */
+	private void flushAll(List<PartitionWriter> writers) {
+		if (coalesce && writers.size() > 1) {
+			flushCoalesced(writers);
+			return;
+		}
+		if (flushExecutor == null || writers.size() < 2) {
+			writers.forEach(PartitionWriter::done);
+			return;
+		}
+
+		ExecutorCompletionService<PartitionWriter> completion = new ExecutorCompletionService<>(flushExecutor);
+		List<Future<PartitionWriter>> futures = new ArrayList<>(writers.size());
+		for (PartitionWriter writer : writers) {
+			futures.add(completion.submit(() -> {
+				writer.upload();
+				return writer;
+			}));
+		}
+
+		try {
+			for (int i = 0; i < writers.size(); i++) {
+				completion.take().get().delete();
+			}
+		} catch (ExecutionException e) {
+			futures.forEach(f -> f.cancel(false));
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RetriableException("Error flushing", e.getCause());
+		} catch (InterruptedException e) {
+			futures.forEach(f -> f.cancel(false));
+			Thread.currentThread().interrupt();
+			throw new RetriableException("Interrupted while flushing", e);
+		}
+	}
+
+	/**
+	 * Upload the given partitions packed into as few objects as upload.coalesce.max.bytes allows, one at a time.
+	 * Partitions that were not uploaded keep their files so the next flush can try again.
+	 */
+	private void flushCoalesced(List<PartitionWriter> writers) {
+		try {
+			for (List<PartitionWriter> batch : coalesce(writers)) {
+				try (Metrics.StopTimer ignored = metrics.time("s3Put", tags)) {
+					s3.putCoalesced(batch.stream().map(PartitionWriter::part).collect(toList()));
+				}
+				batch.forEach(PartitionWriter::delete);
+			}
+		} catch (IOException e) {
+			throw new RetriableException("Error flushing", e);
+		}
+	}
+
+	/**
+	 * With async uploads, hands the current files off for upload and reports only the offsets
+	 * that are already durably in S3. Connect versions without preCommit call {@link #flush(Map)} instead.
+	 * <p>
+	 * Files below rotation.min.bytes stay open, and their partitions are only committed up to the start of the file.
+	 * That is not safe in {@link #flush(Map)}, which must upload everything.
+	 */
+	// @Override - added in 0.10.2
+	public Map<TopicPartition, OffsetAndMetadata> preCommit(Map<TopicPartition, OffsetAndMetadata> currentOffsets) {
+		List<TopicPartition> toUpload = new ArrayList<>(currentOffsets.size());
+		Map<TopicPartition, OffsetAndMetadata> kept = new HashMap<>();
+		for (TopicPartition tp : currentOffsets.keySet()) {
+			PartitionWriter writer = partitions.get(tp);
+			if (writer != null && writer.keepOpen()) {
+				kept.put(tp, new OffsetAndMetadata(writer.firstOffset));
+			} else {
+				toUpload.add(tp);
+			}
+		}
+		if (!kept.isEmpty()) {
+			log.debug("{} keeping small files open for {}", name(), kept.keySet());
+		}
+
+		if (uploads == null) {
+			try (Metrics.StopTimer ignored = metrics.time("flush", tags)) {
+				flushAll(toUpload.stream()
+					.map(partitions::get)
+					.filter(p -> p != null)
+					.collect(toList()));
+			}
+			flushCursors();
+			Map<TopicPartition, OffsetAndMetadata> committable = new HashMap<>(currentOffsets);
+			committable.putAll(kept);
+			return committable;
+		}
+
+		rewindFailedUploads();
+		handOff(toUpload);
+		// whatever has finished uploading by now
+		flushCursors();
+
+		Map<TopicPartition, OffsetAndMetadata> committable = new HashMap<>();
+		uploads.uploadedOffsets().forEach((tp, offset) -> {
+			if (currentOffsets.containsKey(tp)) {
+				committable.put(tp, new OffsetAndMetadata(offset));
+			}
+		});
+		log.debug("{} committable offsets {}", name(), committable);
+		return committable;
+	}
+
+	/**
+	 * The cursors only matter for recovering offsets from S3, so failing to write them doesn't fail the commit.
+	 * They are written again on the next flush.
+	 */
+	private void flushCursors() {
+		try {
+			s3.flushCursors();
+		} catch (IOException e) {
+			log.warn("{} failed to write cursor manifest", name(), e);
+		}
+	}
+
+	private void handOff(Collection<TopicPartition> tps) {
+		if (coalesce) {
+			List<PartitionWriter> writers = tps.stream().map(partitions::remove).filter(p -> p != null).collect(toList());
+			List<List<PartitionWriter>> batches;
+			try {
+				batches = coalesce(writers);
+			} catch (IOException e) {
+				writers.forEach(PartitionWriter::deleteFiles);
+				throw new RetriableException("Error finishing " + tps, e);
+			}
+			batches.forEach(this::queueUpload);
+			return;
+		}
+		for (TopicPartition tp : tps) {
+			PartitionWriter writer = partitions.remove(tp);
+			if (writer != null) {
+				writer.handOff();
+			}
+		}
+	}
+
+	/**
+	 * Queue finished files for upload, as one coalesced object if there are several. Only the files are cleaned up
+	 * once the upload completes: the caller is responsible for having removed the writers from the active partitions.
+	 * <p>
+	 * Durably queued files are kept until they are uploaded, however long that takes.
+	 */
+	private void queueUpload(List<PartitionWriter> writers) {
+		Map<TopicPartition, Long> firstOffsets = new HashMap<>();
+		Map<TopicPartition, Long> nextOffsets = new HashMap<>();
+		for (PartitionWriter writer : writers) {
+			firstOffsets.put(writer.tp, writer.firstOffset);
+			nextOffsets.put(writer.tp, writer.lastOffset + 1);
+		}
+		List<UploadJournal.Entry> entries = new ArrayList<>();
+		if (journal != null) {
+			try {
+				for (PartitionWriter writer : writers) {
+					entries.add(journal.add(writer.tp, writer.firstOffset, writer.lastOffset + 1,
+						writer.getDataFilePath(), writer.getIndexFilePath()));
+				}
+			} catch (IOException e) {
+				entries.forEach(journal::remove);
+				writers.forEach(PartitionWriter::deleteFiles);
+				throw new RetriableException("Error queueing " + firstOffsets.keySet(), e);
+			}
+		}
+		List<Runnable> dequeued = writers.stream().map(PartitionWriter::queued).collect(toList());
+		Map<String, String> putTags = writers.size() == 1 ? writers.get(0).tags : tags;
+		uploads.submit(firstOffsets, nextOffsets, () -> {
+			try (Metrics.StopTimer ignored = metrics.time("s3Put", putTags)) {
+				if (writers.size() == 1) {
+					writers.get(0).putFile();
+				} else {
+					s3.putCoalesced(writers.stream().map(PartitionWriter::part).collect(toList()));
+				}
+			}
+			entries.forEach(journal::remove);
+		}, () -> {
+			if (journal == null) {
+				writers.forEach(PartitionWriter::deleteFiles);
+			}
+			dequeued.forEach(Runnable::run);
+		});
+	}
+
+	/**
+	 * Finish the writers' files, and group them into coalesced objects of up to upload.coalesce.max.bytes. A file
+	 * bigger than that gets an object to itself.
+	 */
+	private List<List<PartitionWriter>> coalesce(List<PartitionWriter> writers) throws IOException {
+		List<List<PartitionWriter>> batches = new ArrayList<>();
+		List<PartitionWriter> batch = new ArrayList<>();
+		long bytes = 0;
+		for (PartitionWriter writer : writers) {
+			writer.finishFile();
+			long length = writer.bufferedBytes();
+			if (!batch.isEmpty() && bytes + length > coalesceMaxBytes) {
+				batches.add(batch);
+				batch = new ArrayList<>();
+				bytes = 0;
+			}
+			batch.add(writer);
+			bytes += length;
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+
+	/**
+	 * Anything after a failed upload has to be consumed again, so drop what we have buffered and seek back.
+	 *
+	 * @return the partitions that were rewound.
+	 */
+	private Set<TopicPartition> rewindFailedUploads() {
+		Set<TopicPartition> rewound = new HashSet<>();
+		if (uploads == null) {
+			return rewound;
+		}
+		uploads.failures().forEach((tp, offset) -> {
+			if (!context.assignment().contains(tp)) {
+				// revoked while the upload was running. the new owner will pick up from the committed offset
+				return;
+			}
+			log.warn("{} upload failed for {}. Rewinding to offset {}", name(), tp, offset);
+			PartitionWriter writer = partitions.get(tp);
+			if (writer != null) {
+				writer.delete();
+			}
+			context.offset(tp, offset);
+			// the failed upload's records are not in S3 after all
+			archivedUpTo.remove(tp);
+			rewound.add(tp);
+		});
+		return rewound;
+	}
+
+	/**
+	 * Move the partition forwards to the offset recovered on open, if its records start before it. The consumer is
+	 * only ever moved forwards, so a stale offset in S3 (e.g., a cursor manifest that failed to update) can't
+	 * rewind a partition whose offset Connect has committed further on.
+	 *
+	 * @param offset the offset of the partition's first record in this batch.
+	 * @return true if the partition was moved, so the rest of its records in the batch should be skipped.
+	 */
+	private boolean skipArchived(TopicPartition tp, long offset) {
+		Long archived = archivedUpTo.get(tp);
+		if (archived == null) {
+			return false;
+		}
+		if (offset >= archived) {
+			archivedUpTo.remove(tp);
+			return false;
+		}
+		log.info("{} skipping {} from offset {} to {}, which S3 or the upload queue already has", name(), tp, offset, archived);
+		context.offset(tp, archived);
+		return true;
+	}
+
 	private String name() {
 		return configGet("name").orElseThrow(() -> new IllegalWorkerStateException("Tasks always have names"));
 	}
@@ -144,12 +747,130 @@ public class S3SinkTask extends SinkTask {
 			.map(this.partitions::get)
 			.filter(p -> p != null)
 			.forEach(PartitionWriter::delete);
+		if (uploads != null) {
+			uploads.forget(partitions);
+		}
+		if (budget != null) {
+			budget.forget(partitions);
+		}
+		partitions.forEach(tp -> {
+			dictionaries.remove(tp);
+			dictionarySamples.remove(tp);
+			archivedUpTo.remove(tp);
+		});
 	}
 
+	/**
+	 * Files are created when we are given the first record for a partition, and offsets are managed by Connect.
+	 * With offsets.recover, the partitions are also moved to the offset after the last one in S3, in case Connect's
+	 * offsets were lost or are behind. With upload.durable, files left in the upload queue by an earlier run are
+	 * queued again, unless S3 already has their records, and the partitions are moved past them.
+	 * Partitions are only moved forwards, once their first records show where the consumer is.
+	 */
 	@Override
 	public void open(Collection<TopicPartition> partitions) {
-		// nothing to do. we will create files when we are given the first record for a partition
-		// offsets are managed by Connect
+		if (partitions.isEmpty() || (!recoverOffsets && journal == null)) {
+			return;
+		}
+		Optional<Map<TopicPartition, Long>> inS3 = fetchOffsets(partitions);
+		Map<TopicPartition, Long> offsets = new HashMap<>();
+		if (recoverOffsets) {
+			inS3.ifPresent(offsets::putAll);
+		}
+		if (journal != null) {
+			if (!inS3.isPresent()) {
+				// another task may have archived them since. they'll be consumed again instead
+				log.warn("{} not queueing files left from an earlier run for {} without knowing what is in S3", name(), partitions);
+			} else {
+				for (TopicPartition tp : partitions) {
+					Long next = requeue(tp, inS3.get().get(tp));
+					if (next != null) {
+						offsets.merge(tp, next, Math::max);
+					}
+				}
+			}
+		}
+		offsets.forEach((tp, offset) -> archivedUpTo.merge(tp, offset, Math::max));
+	}
+
+	/**
+	 * @return the offset after the last one in S3 for each partition that has any, or empty if they can't be fetched.
+	 */
+	private Optional<Map<TopicPartition, Long>> fetchOffsets(Collection<TopicPartition> partitions) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(partitions.size(), recoverThreads), r -> {
+			Thread thread = new Thread(r, name() + "-recover-offsets");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try (Metrics.StopTimer ignored = metrics.time("recoverOffsets", tags)) {
+			Map<TopicPartition, Long> offsets = s3.fetchOffsets(partitions, executor);
+			log.info("{} recovered offsets from S3 {}", name(), offsets);
+			return Optional.of(offsets);
+		} catch (IOException e) {
+			// Connect's offsets are still safe to use, we'll just consume again what is already in S3
+			log.warn("{} failed to recover offsets for {} from S3. Using the committed offsets", name(), partitions, e);
+			return Optional.empty();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Queue the files an earlier run left in the upload queue for the partition. Their offsets are committed as
+	 * they are uploaded, like any others. Files whose records are already in S3, e.g., because the partition was
+	 * archived by another worker in the meantime, are dropped rather than uploaded over newer data.
+	 *
+	 * @param inS3 the offset after the last one in S3, or null if there is nothing in S3 for the partition.
+	 * @return the offset after the last of them, or null if there were none.
+	 */
+	private Long requeue(TopicPartition tp, Long inS3) {
+		List<UploadJournal.Entry> entries;
+		try {
+			entries = journal.recover(tp);
+		} catch (IOException e) {
+			// they'll be consumed again instead
+			log.warn("{} failed to read the upload queue for {}", name(), tp, e);
+			return null;
+		}
+		for (Iterator<UploadJournal.Entry> it = entries.iterator(); inS3 != null && it.hasNext(); ) {
+			UploadJournal.Entry entry = it.next();
+			if (entry.next_offset <= inS3) {
+				log.info("{} dropping the queued upload of {} at offset {}. S3 already has up to {}", name(), tp,
+					entry.first_offset, inS3);
+				journal.remove(entry);
+				it.remove();
+			}
+		}
+		if (entries.isEmpty()) {
+			return null;
+		}
+		for (UploadJournal.Entry entry : entries) {
+			if (budget != null) {
+				budget.queued(tp, entry.bytes);
+			}
+			uploads.submit(tp, entry.first_offset, entry.next_offset, () -> {
+				if (!new File(entry.data_file).exists()) {
+					// removed from the journal since it was recovered, by another task sharing local.buffer.dir that
+					// was assigned the partition next and found S3 already had its records. nothing left to upload
+					return;
+				}
+				try (Metrics.StopTimer ignored = metrics.time("s3Put", tags)) {
+					if (coalesce) {
+						s3.putCoalesced(Collections.singletonList(new S3Writer.Part(tp, entry.data_file, entry.index_file)));
+					} else {
+						s3.putChunk(entry.data_file, entry.index_file, tp);
+					}
+				}
+				journal.remove(entry);
+			}, () -> {
+				if (budget != null) {
+					budget.uploaded(tp, entry.bytes);
+				}
+			});
+		}
+		long next = entries.get(entries.size() - 1).next_offset;
+		log.info("{} queued {} files left from an earlier run for {}, up to offset {}", name(), entries.size(), tp, next);
+		return next;
 	}
 
 	private PartitionWriter initWriter(TopicPartition tp, long offset) {
@@ -160,17 +881,72 @@ public class S3SinkTask extends SinkTask {
 		}
 	}
 
-	private class PartitionWriter {
+	/**
+	 * Upload the partition's sampled dictionary, if it has one that isn't in S3 yet. If that fails, its files are
+	 * compressed without one until the next try.
+	 *
+	 * @return the dictionary for the partition's next file, or null if there isn't one yet.
+	 */
+	private byte[] dictionaryFor(TopicPartition tp) {
+		if (configuredDictionary != null) {
+			if (!configuredDictionaryUploaded) {
+				try {
+					s3.putDictionary(configuredDictionary);
+				} catch (IOException e) {
+					throw new RetriableException("Error uploading compression.dictionary", e);
+				}
+				configuredDictionaryUploaded = true;
+			}
+			return configuredDictionary;
+		}
+		byte[] sample = dictionarySamples.get(tp);
+		if (sample != null) {
+			try {
+				s3.putDictionary(sample);
+				dictionaries.put(tp, sample);
+				dictionarySamples.remove(tp);
+			} catch (IOException e) {
+				log.warn("{} could not upload the dictionary sampled from {}. Compressing without it", name(), tp, e);
+			}
+		}
+		return dictionaries.get(tp);
+	}
+
+	private OutputStream openLocalFile(File file) throws IOException {
+		if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+			throw new IOException("could not create file " + file);
+		}
+		return new FileChannelOutputStream(file, localWriteSize, localPreallocate, localMmap);
+	}
+
+	private class PartitionWriter implements BlockGZIPFileWriter.RecordEncoder {
 		private final TopicPartition tp;
 		private final BlockGZIPFileWriter writer;
-		private final S3RecordsWriter format;
+		// null unless streaming
+		private final MultipartUploadOutputStream stream;
+		// null unless buffering in memory
+		private final SpillableOutputStream buffer;
+		private final S3RecordsStreamWriter format;
 		private final Map<String, String> tags;
+		private final long firstOffset;
+		private long lastOffset;
+		private long recordCount;
+		private final long createdAt = System.currentTimeMillis();
 		private boolean finished;
 		private boolean closed;
+		// the record being written. fields rather than a lambda so writing a record allocates nothing
+		private byte[] recordKey;
+		private byte[] recordValue;
+		private Metrics.StopTimer runTimer;
+		private int runSize;
+		// the first records of the partition, while sampling them for a dictionary
+		private DictionarySample sample;
 
 		private PartitionWriter(TopicPartition tp, long firstOffset) throws IOException {
 			this.tp = tp;
-			format = recordFormat.newWriter();
+			this.firstOffset = firstOffset;
+			this.lastOffset = firstOffset - 1;
+			format = S3RecordsStreamWriter.from(recordFormat.newWriter());
 
 			String name = String.format("%s-%05d", tp.topic(), tp.partition());
 			String path = configGet("local.buffer.dir")
@@ -181,51 +957,224 @@ public class S3SinkTask extends SinkTask {
 			writerTags.put("kafka_topic", tp.topic());
 			writerTags.put("kafka_partition", "" + tp.partition());
 			this.tags = writerTags;
+			if (budget != null) {
+				metrics.gauge("bufferedBytes", writerTags, () -> budget.bufferedBytes(tp));
+			}
+
+			BlockCodec codec = S3SinkTask.this.codec;
+			// before any ParallelCompressor wraps it, so blocks compressed on the pool are timed too
+			if (codec instanceof PooledGzipCodec) {
+				codec = ((PooledGzipCodec) codec).withDeflateTimer(nanos -> metrics.hist(nanos, "deflate.time", tags));
+			}
+			Long dictionaryId = null;
+			if (codec instanceof PresetDictionaryCodec) {
+				byte[] dictionary = dictionaryFor(tp);
+				codec = ((PresetDictionaryCodec) codec).withDictionary(dictionary);
+				if (dictionary != null) {
+					dictionaryId = PresetDictionaryCodec.id(dictionary);
+				} else if (dictionarySampleRecords > 0 && !dictionarySamples.containsKey(tp)) {
+					sample = new DictionarySample();
+				}
+			}
+			if (compressionExecutor != null) {
+				codec = new ParallelCompressor(codec, compressionExecutor, compressionBlockSize, compressionThreads * 2);
+			}
+
+			String dataFileName = BlockGZIPFileWriter.dataFileName(name, firstOffset, codec);
+			stream = streaming ? s3.streamChunk(dataFileName, tp, partExecutor) : null;
+			buffer = memoryPool != null ? new SpillableOutputStream(memoryPool, new File(path, dataFileName)) : null;
+			OutputStream out = stream != null ? stream : buffer != null ? buffer : openLocalFile(new File(path, dataFileName));
+			writer = new BlockGZIPFileWriter(name, path, firstOffset, GZIPChunkThreshold, format.init(tp.topic(), tp.partition(), firstOffset),
+				out, codec, binaryIndex);
+			writer.setCheckpointInterval(checkpointInterval);
+			if (dictionaryId != null) {
+				writer.setDictionaryId(dictionaryId);
+			}
+		}
 
-			writer = new BlockGZIPFileWriter(name, path, firstOffset, GZIPChunkThreshold, format.init(tp.topic(), tp.partition(), firstOffset));
+		private void beginRun() {
+			runTimer = metrics.time("writeAll", tags);
+			runSize = 0;
 		}
 
-		private void writeAll(Collection<SinkRecord> records) {
-			metrics.hist(records.size(), "putSize", tags);
-			try (Metrics.StopTimer ignored = metrics.time("writeAll", tags)) {
-				writer.write(format.writeBatch(records.stream().map(record -> new ProducerRecord<>(record.topic(), record.kafkaPartition(),
-					keyConverter.map(c -> c.fromConnectData(record.topic(), record.keySchema(), record.key()))
-						.orElse(null),
-					valueConverter.fromConnectData(record.topic(), record.valueSchema(), record.value())
-				))).collect(toList()), records.size());
+		private void write(SinkRecord record) {
+			if (rawKeys) {
+				recordKey = AlreadyBytesConverter.bytes(record.topic(), record.keySchema(), record.key());
+			} else {
+				recordKey = keyConverter.isPresent()
+					? keyConverter.get().fromConnectData(record.topic(), record.keySchema(), record.key())
+					: null;
+			}
+			recordValue = rawValues
+				? AlreadyBytesConverter.bytes(record.topic(), record.valueSchema(), record.value())
+				: valueConverter.fromConnectData(record.topic(), record.valueSchema(), record.value());
+			try {
+				writer.write(this, record.timestamp() == null ? BlockGZIPFileWriter.NO_TIMESTAMP : record.timestamp());
 			} catch (IOException e) {
 				throw new RetriableException("Failed to write to buffer", e);
+			} finally {
+				recordKey = recordValue = null;
+			}
+			lastOffset = Math.max(lastOffset, record.kafkaOffset());
+			recordCount++;
+			runSize++;
+		}
+
+		private long rawBytes() {
+			return writer.getRawBytesWritten();
+		}
+
+		private long ageMs() {
+			return System.currentTimeMillis() - createdAt;
+		}
+
+		private boolean keepOpen() {
+			return rotation.keepOpen(rawBytes(), ageMs());
+		}
+
+		@Override
+		public void encode(OutputStream out) throws IOException {
+			if (sample == null) {
+				format.write(tp.topic(), tp.partition(), recordKey, recordValue, out);
+				return;
 			}
+			int start = sample.size();
+			format.write(tp.topic(), tp.partition(), recordKey, recordValue, sample);
+			sample.copySince(start, out);
+			if (++sample.records >= dictionarySampleRecords || sample.size() >= PresetDictionaryCodec.MAX_SIZE) {
+				byte[] dictionary = PresetDictionaryCodec.trim(sample.toByteArray());
+				if (dictionary != null) {
+					dictionarySamples.put(tp, dictionary);
+				}
+				sample = null;
+			}
+		}
+
+		private void endRun() {
+			runTimer.stop();
+			metrics.hist(runSize, "putSize", tags);
+			log.debug("{} received {} records for {} to archive. Last offset {}", name(), runSize, tp, lastOffset);
 		}
 
 		public String getDataFilePath() {
 			return writer.getDataFilePath();
 		}
 
+		public String getIndexFilePath() {
+			return writer.getIndexFilePath();
+		}
+
 		public void delete() {
+			deleteFiles();
+			partitions.remove(tp, this);
+		}
+
+		private void deleteFiles() {
 			writer.delete();
-			partitions.remove(tp);
+			if (stream != null) {
+				stream.abort();
+			}
+			if (buffer != null) {
+				buffer.release();
+			}
 		}
 
 		public void done() {
+			upload();
+			delete();
+		}
+
+		/**
+		 * Finish and upload the file. Safe to call off the task thread.
+		 */
+		private void upload() {
+			long start = System.nanoTime();
 			Metrics.StopTimer time = metrics.time("s3Put", tags);
 			try {
-				if (!finished) {
-					writer.write(Arrays.asList(format.finish(tp.topic(), tp.partition())), 0);
-					finished = true;
-				}
-				if (!closed) {
-					writer.close();
-					closed = true;
-				}
-				s3.putChunk(writer.getDataFilePath(), writer.getIndexFilePath(), tp);
+				finishFile();
+				putFile();
 			} catch (IOException e) {
 				throw new RetriableException("Error flushing " + tp, e);
 			}
-
-			delete();
 			time.stop();
+			log.debug("{} flushed {} in {}ms", name(), tp, (System.nanoTime() - start) / 1_000_000);
+		}
+
+		/**
+		 * Close the file and queue it for upload.
+		 *
+		 * @see #queueUpload(List)
+		 */
+		public void handOff() {
+			try {
+				finishFile();
+			} catch (IOException e) {
+				deleteFiles();
+				throw new RetriableException("Error finishing " + tp, e);
+			}
+			queueUpload(Collections.singletonList(this));
+		}
+
+		/**
+		 * Count the finished file against the buffer budget until it is uploaded.
+		 *
+		 * @return releases it.
+		 */
+		private Runnable queued() {
+			if (budget == null) {
+				return () -> {
+				};
+			}
+			long bytes = bufferedBytes();
+			budget.queued(tp, bytes);
+			return () -> budget.uploaded(tp, bytes);
+		}
+
+		/**
+		 * @return the bytes held locally for this file.
+		 */
+		private long bufferedBytes() {
+			// streamed files are already in S3, but for the part in progress
+			return stream != null ? 0 : writer.getBytesWritten();
 		}
 
+		private void putFile() throws IOException {
+			if (coalesce) {
+				s3.putCoalesced(Collections.singletonList(part()));
+			} else if (stream != null) {
+				s3.putStreamedChunk(stream, writer.getIndexFilePath(), tp);
+			} else if (buffer != null && !buffer.isSpilled()) {
+				s3.putChunk(buffer.openInputStream(), buffer.length(), writer.getDataFilePath(), writer.getIndexFilePath(), tp);
+			} else {
+				s3.putChunk(writer.getDataFilePath(), writer.getIndexFilePath(), tp);
+			}
+		}
+
+		private S3Writer.Part part() {
+			if (buffer != null && !buffer.isSpilled()) {
+				return new S3Writer.Part(tp, buffer::openInputStream, buffer.length(), writer.getDataFilePath(), writer.getIndexFilePath());
+			}
+			return new S3Writer.Part(tp, writer.getDataFilePath(), writer.getIndexFilePath());
+		}
+
+		private void finishFile() throws IOException {
+			if (!finished) {
+				writer.write(Arrays.asList(format.finish(tp.topic(), tp.partition())), 0);
+				finished = true;
+			}
+			if (!closed) {
+				writer.close();
+				closed = true;
+			}
+		}
+
+	}
+
+	private static class DictionarySample extends ByteArrayOutputStream {
+		int records;
+
+		void copySince(int start, OutputStream out) throws IOException {
+			out.write(buf, start, count - start);
+		}
 	}
 }
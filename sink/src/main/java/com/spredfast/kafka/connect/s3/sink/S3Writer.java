@@ -2,30 +2,53 @@ package com.spredfast.kafka.connect.s3.sink;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
-import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import com.spredfast.kafka.connect.s3.BinaryChunksIndex;
+import com.spredfast.kafka.connect.s3.KeyLayout;
+import com.spredfast.kafka.connect.s3.PresetDictionaryCodec;
+import com.spredfast.kafka.connect.s3.json.CoalescedIndex;
 
 
 /**
@@ -36,9 +59,27 @@ import com.spredfast.kafka.connect.s3.json.ChunksIndex;
  * but for now it's just to keep things simpler to test.
  */
 public class S3Writer {
-	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
-	private final ObjectReader reader = new ObjectMapper().reader(ChunksIndex.class);
+	private static final Logger log = LoggerFactory.getLogger(S3Writer.class);
+
+	// the first offset in an index file name
+	private static final Pattern INDEX_OFFSET = Pattern.compile("-(\\d{12})\\.index\\.");
+	private static final String MANIFEST_DIR = "cursors/";
+	private static final TypeReference<Map<String, String>> CURSORS = new TypeReference<Map<String, String>>() {
+	};
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	// null when writing a cursor file per partition
+	private String manifestKey;
+	// latest index key of each partition, by cursor name, for the manifest
+	private final Map<String, String> cursors = new ConcurrentHashMap<>();
+	private volatile boolean cursorsChanged;
+	// with coalescing, the offset after the last one at each partition's cursor, by cursor name, since coalesced index
+	// keys don't say where they are in a partition
+	private final Map<String, Long> coalescedCursorOffsets = new ConcurrentHashMap<>();
+	// null unless coalescing
+	private String coalescedName;
+	private final AtomicLong coalescedSequence = new AtomicLong();
 	private String keyPrefix;
+	private KeyLayout keyLayout = KeyLayout.DEFAULT;
 	private String bucket;
 	private AmazonS3 s3Client;
 	private TransferManager tm;
@@ -61,30 +102,346 @@ public class S3Writer {
 		this.tm = tm;
 	}
 
+	/**
+	 * Rather than write each partition's cursor file as its index is uploaded, keep them in a single manifest
+	 * object, written by {@link #flushCursors()}. {@link #fetchOffset(TopicPartition)} then reads both.
+	 *
+	 * @param name unique to this writer among those writing to the same prefix, e.g., the connector and task.
+	 */
+	public void useCursorManifest(String name) {
+		this.manifestKey = String.format("%s%s%s.json", keyPrefix, MANIFEST_DIR, name);
+	}
+
+	/**
+	 * Allow {@link #putCoalesced(List)}.
+	 *
+	 * @param name unique to this writer among those writing to the same prefix, e.g., the connector and task.
+	 */
+	public void useCoalescing(String name) {
+		this.coalescedName = name;
+	}
+
+	/**
+	 * @param keyLayout where to put data files under the prefix. Their indexes go next to them.
+	 */
+	public void setKeyLayout(KeyLayout keyLayout) {
+		this.keyLayout = keyLayout;
+	}
+
 	public long putChunk(String localDataFile, String localIndexFile, TopicPartition tp) throws IOException {
 		// Put data file then index, then finally update/create the last_index_file marker
-		String dataFileKey = this.getChunkFileKey(localDataFile);
-		String idxFileKey = this.getChunkFileKey(localIndexFile);
-		// Read offset first since we'll delete the file after upload
-		long nextOffset = getNextOffsetFromIndexFileContents(new FileReader(localIndexFile));
+		String dataFileKey = this.getChunkFileKey(localDataFile, tp);
+		String idxFileKey = this.getChunkFileKey(localIndexFile, tp);
 
 		try {
 			Upload upload = tm.upload(this.bucket, dataFileKey, new File(localDataFile));
 			upload.waitForCompletion();
-			upload = tm.upload(this.bucket, idxFileKey, new File(localIndexFile));
+		} catch (Exception e) {
+			throw new IOException("Failed to upload to S3", e);
+		}
+
+		return putIndex(idxFileKey, localIndexFile, tp);
+	}
+
+	/**
+	 * Upload a data file kept in memory, then its index.
+	 *
+	 * @param localDataFile where the data file would have been written, to name the key.
+	 */
+	public long putChunk(InputStream data, long length, String localDataFile, String localIndexFile, TopicPartition tp) throws IOException {
+		String dataFileKey = this.getChunkFileKey(localDataFile, tp);
+		String idxFileKey = this.getChunkFileKey(localIndexFile, tp);
+
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(length);
+		try {
+			Upload upload = tm.upload(this.bucket, dataFileKey, data, metadata);
+			upload.waitForCompletion();
+		} catch (Exception e) {
+			throw new IOException("Failed to upload to S3", e);
+		}
+
+		return putIndex(idxFileKey, localIndexFile, tp);
+	}
+
+	/**
+	 * Start streaming a data file straight to S3, rather than uploading it from disk when it is complete.
+	 *
+	 * @param executor where to upload parts, or null to upload them on the writing thread.
+	 */
+	public MultipartUploadOutputStream streamChunk(String localDataFile, TopicPartition tp, Executor executor) {
+		return new MultipartUploadOutputStream(s3Client, bucket, getChunkFileKey(localDataFile, tp), executor);
+	}
+
+	/**
+	 * Complete a data file started with {@link #streamChunk(String, TopicPartition, Executor)}, then upload its index.
+	 */
+	public long putStreamedChunk(MultipartUploadOutputStream data, String localIndexFile, TopicPartition tp) throws IOException {
+		data.complete();
+		// the index has to live next to the data file, even if the day has changed since we started it
+		String dataFileKey = data.getKey();
+		String idxFileKey = dataFileKey.substring(0, dataFileKey.lastIndexOf('/') + 1)
+			+ Paths.get(localIndexFile).getFileName().toString();
+		return putIndex(idxFileKey, localIndexFile, tp);
+	}
+
+	private long putIndex(String idxFileKey, String localIndexFile, TopicPartition tp) throws IOException {
+		// Read offset first since we'll delete the file after upload
+		long nextOffset;
+		try (InputStream in = new FileInputStream(localIndexFile)) {
+			nextOffset = getNextOffsetFromIndexFileContents(localIndexFile, in);
+		}
+
+		try {
+			Upload upload = tm.upload(this.bucket, idxFileKey, new File(localIndexFile));
 			upload.waitForCompletion();
 		} catch (Exception e) {
 			throw new IOException("Failed to upload to S3", e);
 		}
 
-		this.updateCursorFile(idxFileKey, tp);
+		if (manifestKey != null) {
+			// uploads of a partition can complete out of order when retried, so keep the latest
+			cursors.merge(cursorName(tp), idxFileKey, S3Writer::latestIndex);
+			cursorsChanged = true;
+		} else {
+			this.updateCursorFile(idxFileKey, tp);
+		}
 
 		// Sanity check - return what the new nextOffset will be based on the index we just uploaded
 		return nextOffset;
 	}
 
+	/**
+	 * A finished data file, for {@link #putCoalesced(List)}.
+	 */
+	public static class Part {
+		private final TopicPartition tp;
+		private final Opener data;
+		private final long length;
+		private final String localDataFile;
+		private final String localIndexFile;
+
+		public interface Opener {
+			InputStream open() throws IOException;
+		}
+
+		public Part(TopicPartition tp, String localDataFile, String localIndexFile) {
+			this(tp, () -> new FileInputStream(localDataFile), new File(localDataFile).length(), localDataFile, localIndexFile);
+		}
+
+		/**
+		 * @param localDataFile where the data file would have been written, for its extension.
+		 */
+		public Part(TopicPartition tp, Opener data, long length, String localDataFile, String localIndexFile) {
+			this.tp = tp;
+			this.data = data;
+			this.length = length;
+			this.localDataFile = localDataFile;
+			this.localIndexFile = localIndexFile;
+		}
+
+		public long length() {
+			return length;
+		}
+	}
+
+	/**
+	 * Upload several data files, of any partitions, as one coalesced object, with one index giving each file's byte
+	 * range, offsets and chunks. See {@link CoalescedIndex}. The cursor of each partition then points at that index.
+	 * <p>
+	 * Coalesced objects go under coalesced/ in the prefix, whatever the key layout, named after the time their upload
+	 * started. That only roughly orders them: uploads finish out of order, and other tasks' clocks differ. So readers
+	 * go by the offsets in the index, not the order of the keys.
+	 *
+	 * @param parts all compressed the same way.
+	 */
+	public void putCoalesced(List<Part> parts) throws IOException {
+		if (coalescedName == null) {
+			throw new IllegalStateException("Coalescing is not enabled");
+		}
+		String firstDataFile = parts.get(0).localDataFile;
+		CoalescedIndex index = new CoalescedIndex();
+		index.extension = firstDataFile.substring(firstDataFile.lastIndexOf('.') + 1);
+		index.parts = new ArrayList<>(parts.size());
+		long position = 0;
+		for (Part part : parts) {
+			BinaryChunksIndex chunks;
+			try (InputStream in = new FileInputStream(part.localIndexFile)) {
+				chunks = BinaryChunksIndex.read(part.localIndexFile, in);
+			}
+			CoalescedIndex.Part entry = new CoalescedIndex.Part();
+			entry.topic = part.tp.topic();
+			entry.partition = part.tp.partition();
+			entry.byte_offset = position;
+			entry.byte_length = part.length;
+			entry.first_record_offset = chunks.chunk(0).first_record_offset;
+			entry.last_record_offset = chunks.lastOffset();
+			entry.chunks = new ArrayList<>(chunks.size());
+			for (int i = 0; i < chunks.size(); i++) {
+				entry.chunks.add(chunks.chunk(i));
+			}
+			index.parts.add(entry);
+			position += part.length;
+		}
+
+		String indexKey = String.format("%s%s%013d-%s-%06d%s", keyPrefix, CoalescedIndex.DIR, System.currentTimeMillis(),
+			coalescedName, coalescedSequence.incrementAndGet(), CoalescedIndex.SUFFIX);
+		String dataKey = index.dataKey(indexKey);
+
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(position);
+		try (InputStream data = new SequenceInputStream(opening(parts.iterator()))) {
+			Upload upload = tm.upload(this.bucket, dataKey, data, metadata);
+			upload.waitForCompletion();
+		} catch (Exception e) {
+			throw new IOException("Failed to upload to S3", e);
+		}
+		putString(indexKey, objectMapper.writeValueAsString(index));
+
+		for (CoalescedIndex.Part part : index.parts) {
+			TopicPartition tp = new TopicPartition(part.topic, part.partition);
+			long next = part.last_record_offset + 1;
+			// an upload finishing late, e.g., a retry, or one from before the partition was revoked and given back
+			Long current = coalescedCursorOffsets.get(cursorName(tp));
+			if (manifestKey == null && current == null) {
+				// the cursor may have moved on since another task had the partition
+				current = fetchOffset(tp, fetchCursorFile(tp));
+			}
+			if (current != null && current > next) {
+				log.warn("Not moving the cursor of {} back from offset {} to {}", tp, current, next);
+				continue;
+			}
+			coalescedCursorOffsets.put(cursorName(tp), next);
+			if (manifestKey != null) {
+				cursors.put(cursorName(tp), indexKey);
+				cursorsChanged = true;
+			} else {
+				this.updateCursorFile(indexKey, tp);
+			}
+		}
+	}
+
+	/**
+	 * Opens each part's data as it is reached, rather than holding every file open at once.
+	 */
+	private static Enumeration<InputStream> opening(Iterator<Part> parts) {
+		return new Enumeration<InputStream>() {
+			@Override
+			public boolean hasMoreElements() {
+				return parts.hasNext();
+			}
+
+			@Override
+			public InputStream nextElement() {
+				try {
+					return parts.next().data.open();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
 	public long fetchOffset(TopicPartition tp) throws IOException {
+		Long offset = fetchOffsets(Collections.singleton(tp), Runnable::run).get(tp);
+		// Topic partition has no data in S3, start from beginning
+		return offset == null ? 0 : offset;
+	}
+
+	/**
+	 * Look up the next offset of many partitions at once, fetching their cursors and indexes concurrently.
+	 *
+	 * @return the offset after the last one in S3, for the partitions that have a cursor.
+	 */
+	public Map<TopicPartition, Long> fetchOffsets(Collection<TopicPartition> tps, Executor executor) throws IOException {
+		// one listing for all of them
+		Map<String, Set<String>> manifests = manifestKey != null ? fetchManifests() : Collections.emptyMap();
+
+		Map<TopicPartition, CompletableFuture<Long>> fetches = new HashMap<>();
+		for (TopicPartition tp : tps) {
+			fetches.put(tp, CompletableFuture.supplyAsync(() -> {
+				try {
+					Set<String> indexKeys = new HashSet<>(manifests.getOrDefault(cursorName(tp), Collections.emptySet()));
+					indexKeys.add(fetchCursorFile(tp));
+					return fetchLatestOffset(tp, indexKeys);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor));
+		}
+
+		Map<TopicPartition, Long> offsets = new HashMap<>();
+		for (Map.Entry<TopicPartition, CompletableFuture<Long>> fetch : fetches.entrySet()) {
+			Long offset;
+			try {
+				offset = fetch.getValue().join();
+			} catch (CompletionException e) {
+				fetches.values().forEach(f -> f.cancel(false));
+				if (e.getCause() instanceof UncheckedIOException) {
+					throw ((UncheckedIOException) e.getCause()).getCause();
+				}
+				throw new IOException("Failed to fetch offset of " + fetch.getKey(), e.getCause());
+			}
+			if (offset != null) {
+				offsets.put(fetch.getKey(), offset);
+			}
+		}
+		return offsets;
+	}
+
+	/**
+	 * Chunk indexes are named after their first offset, so only the latest of them is fetched. Coalesced indexes are
+	 * named after the time they were uploaded, which says nothing about their offsets (uploads finish late, clocks
+	 * differ), so each of them is.
+	 *
+	 * @param indexKeys the indexes cursors point at. May contain null.
+	 * @return the offset after the last one in whichever index goes furthest, or null if there are none.
+	 */
+	private Long fetchLatestOffset(TopicPartition tp, Collection<String> indexKeys) throws IOException {
+		String latestChunkIndex = null;
+		Long offset = null;
+		for (String indexKey : indexKeys) {
+			if (indexKey != null && CoalescedIndex.isIndex(indexKey)) {
+				offset = later(offset, fetchOffset(tp, indexKey));
+			} else {
+				latestChunkIndex = latestIndex(latestChunkIndex, indexKey);
+			}
+		}
+		return later(offset, fetchOffset(tp, latestChunkIndex));
+	}
+
+	private static Long later(Long a, Long b) {
+		return a == null ? b : b == null ? a : Long.valueOf(Math.max(a, b));
+	}
+
+	/**
+	 * @return the offset after the last one in the index, or null if there is no index.
+	 */
+	private Long fetchOffset(TopicPartition tp, String indexFileKey) throws IOException {
+		if (indexFileKey == null) {
+			return null;
+		}
+
+		// Now fetch last written index file...
+		try (
+			S3Object indexObj = s3Client.getObject(this.bucket, indexFileKey);
+		) {
+			if (CoalescedIndex.isIndex(indexFileKey)) {
+				return objectMapper.readValue(indexObj.getObjectContent(), CoalescedIndex.class)
+					.part(tp.topic(), tp.partition())
+					.map(part -> part.last_record_offset + 1)
+					.orElseThrow(() -> new IOException(indexFileKey + " has no part for " + tp));
+			}
+			return getNextOffsetFromIndexFileContents(indexFileKey, indexObj.getObjectContent());
+		} catch (Exception e) {
+			throw new IOException("Failed to fetch or parse last index file of " + tp, e);
+		}
+	}
 
+	/**
+	 * @return the index key in the partition's cursor file, or null if there is none.
+	 */
+	private String fetchCursorFile(TopicPartition tp) throws IOException {
 		// See if cursor file exists
 		String indexFileKey;
 
@@ -103,55 +460,135 @@ public class S3Writer {
 			indexFileKey = sb.toString();
 		} catch (AmazonS3Exception ase) {
 			if (ase.getStatusCode() == 404) {
-				// Topic partition has no data in S3, start from beginning
-				return 0;
+				return null;
 			} else {
 				throw new IOException("Failed to fetch cursor file", ase);
 			}
 		} catch (Exception e) {
 			throw new IOException("Failed to fetch or read cursor file", e);
 		}
+		return indexFileKey;
+	}
 
-		// Now fetch last written index file...
-		try (
-			S3Object indexObj = s3Client.getObject(this.bucket, indexFileKey);
-			InputStreamReader isr = new InputStreamReader(indexObj.getObjectContent(), "UTF-8");
-		) {
-			return getNextOffsetFromIndexFileContents(isr);
+	/**
+	 * Merge every manifest under the prefix. Partitions move between tasks, so the latest index of a partition may
+	 * be in any of them.
+	 *
+	 * @return every index key in them, by cursor name.
+	 */
+	private Map<String, Set<String>> fetchManifests() throws IOException {
+		Map<String, Set<String>> latest = new HashMap<>();
+		try {
+			ObjectListing listing = s3Client.listObjects(bucket, keyPrefix + MANIFEST_DIR);
+			while (true) {
+				for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+					try (S3Object manifest = s3Client.getObject(bucket, summary.getKey())) {
+						Map<String, String> cursors = objectMapper.readValue(manifest.getObjectContent(), CURSORS);
+						cursors.forEach((name, key) -> latest.computeIfAbsent(name, n -> new HashSet<>()).add(key));
+					}
+				}
+				if (!listing.isTruncated()) {
+					return latest;
+				}
+				listing = s3Client.listNextBatchOfObjects(listing);
+			}
 		} catch (Exception e) {
-			throw new IOException("Failed to fetch or parse last index file", e);
+			throw new IOException("Failed to fetch or read cursor manifests", e);
+		}
+	}
+
+	/**
+	 * Write the cursor manifest, if any index has been uploaded since it was last written.
+	 */
+	public void flushCursors() throws IOException {
+		if (manifestKey == null || !cursorsChanged) {
+			return;
+		}
+		cursorsChanged = false;
+		try {
+			putString(manifestKey, objectMapper.writeValueAsString(new TreeMap<>(cursors)));
+		} catch (IOException e) {
+			cursorsChanged = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return whichever chunk index starts at the later offset. Either may be null. A coalesced index is taken to be
+	 * later than a chunk index, since a connector only ever switches to coalescing. Coalesced indexes can't be
+	 * ordered by their keys at all: see {@link #fetchLatestOffset(TopicPartition, Collection)}.
+	 */
+	static String latestIndex(String a, String b) {
+		if (a == null || b == null) {
+			return a == null ? b : a;
 		}
+		if (CoalescedIndex.isIndex(a) || CoalescedIndex.isIndex(b)) {
+			return CoalescedIndex.isIndex(a) ? a : b;
+		}
+		return indexOffset(b) > indexOffset(a) ? b : a;
+	}
+
+	private static long indexOffset(String indexKey) {
+		Matcher matcher = INDEX_OFFSET.matcher(indexKey);
+		return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+	}
+
+	private static String cursorName(TopicPartition tp) {
+		return String.format("%s-%05d", tp.topic(), tp.partition());
 	}
 
-	private long getNextOffsetFromIndexFileContents(Reader indexJSON) throws IOException {
-		ChunksIndex index = reader.readValue(indexJSON);
-		ChunkDescriptor lastChunk = index.chunks.get(index.chunks.size() - 1);
-		return lastChunk.first_record_offset + lastChunk.num_records;
+	/**
+	 * @param indexFileKey the index file name, which decides whether it is JSON or binary.
+	 */
+	private long getNextOffsetFromIndexFileContents(String indexFileKey, InputStream index) throws IOException {
+		return BinaryChunksIndex.read(indexFileKey, index).lastOffset() + 1;
 	}
 
-	// We store chunk files with a date prefix just to make finding them and navigating around the bucket a bit easier
-	// date is meaningless other than "when this was uploaded"
-	private String getChunkFileKey(String localFilePath) {
+	// By default, we store chunk files with a date prefix just to make finding them and navigating around the bucket a
+	// bit easier. date is meaningless other than "when this was uploaded"
+	private String getChunkFileKey(String localFilePath, TopicPartition tp) {
 		Path p = Paths.get(localFilePath);
-		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-		df.setTimeZone(UTC);
-		return String.format("%s%s/%s", keyPrefix, df.format(new Date()), p.getFileName().toString());
+		return keyPrefix + keyLayout.directory(tp.topic(), tp.partition(), System.currentTimeMillis())
+			+ p.getFileName().toString();
 	}
 
 	private String getTopicPartitionLastIndexFileKey(TopicPartition tp) {
 		return String.format("%slast_chunk_index.%s-%05d.txt", this.keyPrefix, tp.topic(), tp.partition());
 	}
 
+	/**
+	 * Upload a preset dictionary where readers of the blocks compressed with it look for it. It is stored by id, so
+	 * uploading the same dictionary again does no harm.
+	 *
+	 * @return the dictionary's id.
+	 * @see PresetDictionaryCodec
+	 */
+	public long putDictionary(byte[] dictionary) throws IOException {
+		long id = PresetDictionaryCodec.id(dictionary);
+		String key = PresetDictionaryCodec.key(keyPrefix, id);
+		try {
+			ObjectMetadata md = new ObjectMetadata();
+			md.setContentLength(dictionary.length);
+			s3Client.putObject(new PutObjectRequest(this.bucket, key, new ByteArrayInputStream(dictionary), md));
+		} catch (Exception ex) {
+			throw new IOException("Failed to upload " + key, ex);
+		}
+		return id;
+	}
+
 	private void updateCursorFile(String lastIndexFileKey, TopicPartition tp) throws IOException {
+		putString(this.getTopicPartitionLastIndexFileKey(tp), lastIndexFileKey);
+	}
+
+	private void putString(String key, String contents) throws IOException {
 		try {
-			byte[] contentAsBytes = lastIndexFileKey.getBytes("UTF-8");
+			byte[] contentAsBytes = contents.getBytes("UTF-8");
 			ByteArrayInputStream contentsAsStream = new ByteArrayInputStream(contentAsBytes);
 			ObjectMetadata md = new ObjectMetadata();
 			md.setContentLength(contentAsBytes.length);
-			s3Client.putObject(new PutObjectRequest(this.bucket, this.getTopicPartitionLastIndexFileKey(tp),
-				contentsAsStream, md));
+			s3Client.putObject(new PutObjectRequest(this.bucket, key, contentsAsStream, md));
 		} catch (Exception ex) {
-			throw new IOException("Failed to update cursor file", ex);
+			throw new IOException("Failed to upload " + key, ex);
 		}
 	}
 }
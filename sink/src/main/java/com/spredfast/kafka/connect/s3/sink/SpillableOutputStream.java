@@ -0,0 +1,213 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a data file in memory, in buffers from a {@link DirectBufferPool}, and only writes it to disk
+ * if the pool runs out.
+ * <p>
+ * Once spilled, everything written so far is moved to the file and the buffers go back to the pool, so the
+ * file can be uploaded from disk as usual. Otherwise, upload straight from memory with {@link #openInputStream()}
+ * and {@link #release()} the buffers once it is done.
+ */
+public class SpillableOutputStream extends OutputStream {
+
+	private final DirectBufferPool pool;
+	private final File spillFile;
+	private final List<ByteBuffer> segments = new ArrayList<>();
+	private ByteBuffer current;
+	private OutputStream spilled;
+	private long length;
+
+	/**
+	 * @param spillFile where to write the data if memory runs out. Truncated if it exists.
+	 */
+	public SpillableOutputStream(DirectBufferPool pool, File spillFile) {
+		this.pool = pool;
+		this.spillFile = spillFile;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (spilled == null && (current == null || !current.hasRemaining()) && !nextSegment()) {
+			spill();
+		}
+		if (spilled != null) {
+			spilled.write(b);
+		} else {
+			current.put((byte) b);
+		}
+		length++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		length += len;
+		while (len > 0 && spilled == null) {
+			if ((current == null || !current.hasRemaining()) && !nextSegment()) {
+				spill();
+				break;
+			}
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+		if (len > 0) {
+			spilled.write(b, off, len);
+		}
+	}
+
+	private boolean nextSegment() {
+		current = pool.tryAcquire();
+		if (current == null) {
+			return false;
+		}
+		segments.add(current);
+		return true;
+	}
+
+	private void spill() throws IOException {
+		if (!spillFile.getParentFile().exists() && !spillFile.getParentFile().mkdirs()) {
+			throw new IOException("could not create file " + spillFile);
+		}
+		spilled = new BufferedOutputStream(new FileOutputStream(spillFile), DirectBufferPool.DEFAULT_SEGMENT_SIZE);
+		byte[] copy = new byte[DirectBufferPool.DEFAULT_SEGMENT_SIZE];
+		for (ByteBuffer segment : segments) {
+			segment.flip();
+			while (segment.hasRemaining()) {
+				int n = Math.min(copy.length, segment.remaining());
+				segment.get(copy, 0, n);
+				spilled.write(copy, 0, n);
+			}
+		}
+		release();
+	}
+
+	public boolean isSpilled() {
+		return spilled != null;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (spilled != null) {
+			spilled.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (spilled != null) {
+			spilled.close();
+		}
+	}
+
+	/**
+	 * @return the data kept in memory. Supports mark/reset, so the upload can be retried.
+	 */
+	public InputStream openInputStream() {
+		if (spilled != null) {
+			throw new IllegalStateException("Data was spilled to " + spillFile);
+		}
+		List<ByteBuffer> views = new ArrayList<>(segments.size());
+		for (ByteBuffer segment : segments) {
+			ByteBuffer view = segment.duplicate();
+			view.flip();
+			views.add(view);
+		}
+		return new SegmentsInputStream(views);
+	}
+
+	/**
+	 * Return the buffers to the pool. The in-memory data is gone after this.
+	 */
+	public void release() {
+		segments.forEach(pool::release);
+		segments.clear();
+		current = null;
+	}
+
+	private static class SegmentsInputStream extends InputStream {
+		private final List<ByteBuffer> segments;
+		private int segment;
+		private int markSegment;
+		private int[] markPositions;
+
+		SegmentsInputStream(List<ByteBuffer> segments) {
+			this.segments = segments;
+		}
+
+		private ByteBuffer current() {
+			while (segment < segments.size() && !segments.get(segment).hasRemaining()) {
+				segment++;
+			}
+			return segment < segments.size() ? segments.get(segment) : null;
+		}
+
+		@Override
+		public int read() {
+			ByteBuffer current = current();
+			return current == null ? -1 : current.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer current = current();
+			if (current == null) {
+				return -1;
+			}
+			int n = Math.min(len, current.remaining());
+			current.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			ByteBuffer current = current();
+			return current == null ? 0 : current.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			markSegment = segment;
+			markPositions = new int[segments.size()];
+			for (int i = 0; i < segments.size(); i++) {
+				markPositions[i] = segments.get(i).position();
+			}
+		}
+
+		@Override
+		public synchronized void reset() {
+			if (markPositions == null) {
+				// never marked: back to the start
+				segments.forEach(ByteBuffer::rewind);
+				segment = 0;
+				return;
+			}
+			segment = markSegment;
+			for (int i = 0; i < segments.size(); i++) {
+				segments.get(i).position(markPositions[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import com.spredfast.kafka.connect.s3.RefCountedCache;
+import com.spredfast.kafka.connect.s3.S3;
+
+/**
+ * Builds the TransferManager that sink tasks upload files with, from the s3.transfer.* and s3.multipart.* settings.
+ * <p>
+ * With s3.transfer.shared, all the sink tasks of a worker with the same settings upload through one TransferManager,
+ * so s3.transfer.threads caps concurrent part uploads for the whole worker rather than per task.
+ */
+class TransferManagers {
+
+	private static final RefCountedCache<List<Object>, Shared> SHARED = new RefCountedCache<>(shared -> {
+		shared.tm.shutdownNow(false);
+		shared.client.close();
+	});
+
+	private static final AtomicInteger THREADS = new AtomicInteger();
+
+	/**
+	 * @param s3Client the task's client, used unless the TransferManager is shared.
+	 * @return close it when the task stops.
+	 */
+	static RefCountedCache.Lease<TransferManager> acquire(AmazonS3 s3Client, Map<String, String> config) {
+		int threads = get(config, "s3.transfer.threads").map(Integer::parseInt).orElse(10);
+		TransferManagerConfiguration configuration = new TransferManagerConfiguration();
+		get(config, "s3.multipart.threshold").map(Long::parseLong).ifPresent(configuration::setMultipartUploadThreshold);
+		get(config, "s3.multipart.part.size").map(Long::parseLong).ifPresent(configuration::setMinimumUploadPartSize);
+		if (configuration.getMinimumUploadPartSize() < MultipartUploadOutputStream.MIN_PART_SIZE) {
+			throw new IllegalArgumentException("s3.multipart.part.size must be at least " + MultipartUploadOutputStream.MIN_PART_SIZE);
+		}
+
+		if (!get(config, "s3.transfer.shared").map(Boolean::parseBoolean).orElse(false)) {
+			// the task's client is not ours to shut down
+			return RefCountedCache.Lease.of(create(s3Client, threads, configuration), tm -> tm.shutdownNow(false));
+		}
+		// everything the TransferManager and its client are built from
+		List<Object> key = Arrays.asList(S3.clientKey(config), threads,
+			configuration.getMultipartUploadThreshold(), configuration.getMinimumUploadPartSize());
+		RefCountedCache.Lease<Shared> shared = SHARED.acquire(key, () -> {
+			// holds its own lease on the client, since the task that happens to create it may stop first
+			RefCountedCache.Lease<AmazonS3> client = S3.sharedClient(config);
+			return new Shared(create(client.get(), threads, configuration), client);
+		});
+		return RefCountedCache.Lease.of(shared.get().tm, tm -> shared.close());
+	}
+
+	private static class Shared {
+		final TransferManager tm;
+		final RefCountedCache.Lease<AmazonS3> client;
+
+		Shared(TransferManager tm, RefCountedCache.Lease<AmazonS3> client) {
+			this.tm = tm;
+			this.client = client;
+		}
+	}
+
+	private static TransferManager create(AmazonS3 s3Client, int threads, TransferManagerConfiguration configuration) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "s3-transfer-" + THREADS.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		TransferManager tm = new TransferManager(s3Client, pool, true);
+		tm.setConfiguration(configuration);
+		return tm;
+	}
+
+	private static Optional<String> get(Map<String, String> config, String key) {
+		return Optional.ofNullable(config.get(key));
+	}
+}
@@ -0,0 +1,140 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Finished files waiting to be uploaded, recorded next to them on local disk so that they survive an S3 outage
+ * and a restart, rather than being consumed from Kafka again.
+ * <p>
+ * Each file is one small JSON entry in the journal directory, named after its partition and first offset, written
+ * before the file is queued and deleted once it is in S3. Entries left by an earlier run are {@link #recover}ed when
+ * their partition is assigned again. Thread safe.
+ */
+public class UploadJournal {
+
+	private static final Logger log = LoggerFactory.getLogger(UploadJournal.class);
+
+	private static final String SUFFIX = ".upload";
+
+	private final File dir;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	// entries this journal is uploading, by entry file name, so they are only queued once
+	private final Map<String, Entry> tracked = new ConcurrentHashMap<>();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public static class Entry {
+		public String topic;
+		public int partition;
+		public long first_offset;
+		public long next_offset;
+		public String data_file;
+		public String index_file;
+		public long bytes;
+
+		public TopicPartition tp() {
+			return new TopicPartition(topic, partition);
+		}
+
+		private String name() {
+			return String.format("%s-%05d-%012d%s", topic, partition, first_offset, SUFFIX);
+		}
+	}
+
+	public UploadJournal(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create upload journal directory " + dir);
+		}
+		this.dir = dir;
+	}
+
+	/**
+	 * Record a finished file.
+	 *
+	 * @param nextOffset the offset to commit once it is uploaded.
+	 */
+	public Entry add(TopicPartition tp, long firstOffset, long nextOffset, String dataFile, String indexFile) throws IOException {
+		Entry entry = new Entry();
+		entry.topic = tp.topic();
+		entry.partition = tp.partition();
+		entry.first_offset = firstOffset;
+		entry.next_offset = nextOffset;
+		entry.data_file = dataFile;
+		entry.index_file = indexFile;
+		entry.bytes = new File(dataFile).length() + new File(indexFile).length();
+
+		// written whole or not at all
+		File temp = new File(dir, entry.name() + ".tmp");
+		objectMapper.writeValue(temp, entry);
+		Files.move(temp.toPath(), new File(dir, entry.name()).toPath(), ATOMIC_MOVE);
+		track(entry);
+		return entry;
+	}
+
+	/**
+	 * Forget an uploaded file, and delete it.
+	 */
+	public void remove(Entry entry) {
+		if (tracked.remove(entry.name()) != null) {
+			bytes.addAndGet(-entry.bytes);
+		}
+		for (String file : new String[]{entry.data_file, entry.index_file, new File(dir, entry.name()).getPath()}) {
+			if (!new File(file).delete() && new File(file).exists()) {
+				log.warn("Could not delete {}", file);
+			}
+		}
+	}
+
+	/**
+	 * @return the entries for the partition left by an earlier run, in offset order, now tracked by this journal.
+	 * Entries whose files are gone are dropped.
+	 */
+	public List<Entry> recover(TopicPartition tp) throws IOException {
+		String prefix = String.format("%s-%05d-", tp.topic(), tp.partition());
+		File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX) && !tracked.containsKey(name));
+		List<Entry> recovered = new ArrayList<>();
+		for (File file : files == null ? new File[0] : files) {
+			Entry entry = objectMapper.readValue(file, Entry.class);
+			if (!entry.tp().equals(tp)) {
+				// another topic whose name starts with this one
+				continue;
+			}
+			if (!new File(entry.data_file).exists() || !new File(entry.index_file).exists()) {
+				log.warn("Dropping upload of {} at offset {}. Its files are gone", tp, entry.first_offset);
+				remove(entry);
+				continue;
+			}
+			recovered.add(entry);
+		}
+		recovered.sort(Comparator.comparingLong(e -> e.first_offset));
+		recovered.forEach(this::track);
+		return recovered;
+	}
+
+	private void track(Entry entry) {
+		if (tracked.put(entry.name(), entry) == null) {
+			bytes.addAndGet(entry.bytes);
+		}
+	}
+
+	/**
+	 * @return the size of the files waiting to be uploaded.
+	 */
+	public long bytes() {
+		return bytes.get();
+	}
+}
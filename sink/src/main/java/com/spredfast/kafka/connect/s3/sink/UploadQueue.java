@@ -0,0 +1,207 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads finished partition files in the background.
+ * <p>
+ * Uploads for a single partition are chained so they complete in offset order, while different partitions
+ * upload concurrently. Once an upload for a partition fails, every upload queued behind it is skipped,
+ * and the failure is reported (once) through {@link #failures()} so the caller can rewind to the first
+ * offset that did not make it to S3.
+ * <p>
+ * Alternatively, failed uploads can be retried with exponential backoff until they succeed or the queue is closed,
+ * for files that are kept somewhere durable in the meantime. Nothing is ever reported as failed then.
+ * <p>
+ * submit/failures/forget are expected to be called from the task thread only.
+ */
+public class UploadQueue {
+
+	private static final Logger log = LoggerFactory.getLogger(UploadQueue.class);
+
+	private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	private final ExecutorService executor;
+	// 0 to fail rather than retry
+	private final long retryBackoffMs;
+	private final long maxRetryBackoffMs;
+	// counted down when closing, to stop retrying
+	private final CountDownLatch closing = new CountDownLatch(1);
+
+	private final Map<TopicPartition, CompletableFuture<Void>> pending = new HashMap<>();
+
+	// next offset to commit for each partition, i.e., 1 + the last offset durably in S3
+	private final Map<TopicPartition, Long> uploaded = new ConcurrentHashMap<>();
+
+	// first offset of the earliest failed upload for each partition
+	private final Map<TopicPartition, Long> failed = new ConcurrentHashMap<>();
+
+	public interface Upload {
+		void run() throws IOException;
+	}
+
+	public UploadQueue(ExecutorService executor) {
+		this(executor, 0, 0);
+	}
+
+	/**
+	 * @param retryBackoffMs    how long to wait before retrying a failed upload, doubling on each failure. 0 to fail
+	 *                          instead.
+	 * @param maxRetryBackoffMs the longest to wait between retries.
+	 */
+	public UploadQueue(ExecutorService executor, long retryBackoffMs, long maxRetryBackoffMs) {
+		this.executor = executor;
+		this.retryBackoffMs = retryBackoffMs;
+		this.maxRetryBackoffMs = Math.max(retryBackoffMs, maxRetryBackoffMs);
+	}
+
+	/**
+	 * Queue an upload behind any other uploads for the same partition.
+	 *
+	 * @param firstOffset the first offset contained in the upload.
+	 * @param nextOffset  the offset to commit once the upload completes.
+	 * @param upload      performs the upload.
+	 * @param cleanup     always run once the upload completes, fails, is skipped or, when retrying, given up on
+	 *                    because the queue was closed.
+	 */
+	public void submit(TopicPartition tp, long firstOffset, long nextOffset, Upload upload, Runnable cleanup) {
+		submit(Collections.singletonMap(tp, firstOffset), Collections.singletonMap(tp, nextOffset), upload, cleanup);
+	}
+
+	/**
+	 * Queue an upload of several partitions at once, behind any other uploads for any of them. It succeeds or fails
+	 * for all of them.
+	 *
+	 * @param firstOffsets the first offset contained in the upload, for each partition.
+	 * @param nextOffsets  the offset to commit once the upload completes, for each partition.
+	 */
+	public void submit(Map<TopicPartition, Long> firstOffsets, Map<TopicPartition, Long> nextOffsets, Upload upload, Runnable cleanup) {
+		Map<TopicPartition, CompletableFuture<Void>> previous = new HashMap<>();
+		firstOffsets.keySet().forEach(tp -> previous.put(tp, pending.getOrDefault(tp, DONE)));
+		CompletableFuture<Throwable> previousFailure = CompletableFuture.allOf(previous.values().toArray(new CompletableFuture<?>[0]))
+			.handle((ignored, e) -> e);
+		CompletableFuture<Void> next = previousFailure.thenAcceptAsync(failure -> {
+			if (failure != null) {
+				// skipped. partitions that were only held up by another partition's failure have to be rewound too
+				previous.forEach((tp, future) -> {
+					if (retryBackoffMs <= 0 && !future.isCompletedExceptionally()) {
+						failed.putIfAbsent(tp, firstOffsets.get(tp));
+					}
+				});
+				throw new CompletionException(failure);
+			}
+			long backoff = retryBackoffMs;
+			while (true) {
+				try {
+					upload.run();
+					uploaded.putAll(nextOffsets);
+					return;
+				} catch (Exception e) {
+					if (retryBackoffMs <= 0) {
+						log.warn("Upload of {} starting at offsets {} failed", firstOffsets.keySet(), firstOffsets, e);
+						firstOffsets.forEach(failed::putIfAbsent);
+						throw new CompletionException(e);
+					}
+					log.warn("Upload of {} starting at offsets {} failed. Retrying in {}ms", firstOffsets.keySet(), firstOffsets, backoff, e);
+				}
+				if (awaitClosing(backoff)) {
+					throw new CompletionException(new IOException("Closed before " + firstOffsets + " were uploaded"));
+				}
+				backoff = Math.min(backoff * 2, maxRetryBackoffMs);
+			}
+		}, executor);
+		CompletableFuture<Void> done = next.whenComplete((ignored, e) -> cleanup.run());
+		firstOffsets.keySet().forEach(tp -> pending.put(tp, done));
+	}
+
+	/**
+	 * @return true if the queue is closing.
+	 */
+	private boolean awaitClosing(long ms) {
+		try {
+			return closing.await(ms, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		}
+	}
+
+	/**
+	 * @return the offset to commit for each partition that has had an upload complete.
+	 */
+	public Map<TopicPartition, Long> uploadedOffsets() {
+		return new HashMap<>(uploaded);
+	}
+
+	/**
+	 * @return the partitions that have failed uploads, with the first offset that was not uploaded. Each failure
+	 * is only returned once. Further submissions for the partition start a fresh chain.
+	 */
+	public Map<TopicPartition, Long> failures() {
+		Map<TopicPartition, Long> failures = new HashMap<>();
+		for (TopicPartition tp : new ArrayList<>(failed.keySet())) {
+			Long offset = failed.remove(tp);
+			if (offset != null) {
+				failures.put(tp, offset);
+				pending.remove(tp);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Block until every upload submitted so far has completed or been skipped.
+	 */
+	public void awaitAll() {
+		List<CompletableFuture<Void>> all = new ArrayList<>(pending.values());
+		for (CompletableFuture<Void> future : all) {
+			try {
+				future.join();
+			} catch (CompletionException ignored) {
+				// reported via failures()
+			}
+		}
+	}
+
+	/**
+	 * Stop tracking the given partitions, e.g., because they have been revoked. Their uploads still run.
+	 */
+	public void forget(Collection<TopicPartition> partitions) {
+		for (TopicPartition tp : partitions) {
+			pending.remove(tp);
+			uploaded.remove(tp);
+			failed.remove(tp);
+		}
+	}
+
+	/**
+	 * Wait for outstanding uploads and release the executor. Uploads that are being retried are given up on after
+	 * their current attempt.
+	 */
+	public void close() {
+		closing.countDown();
+		awaitAll();
+		executor.shutdown();
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
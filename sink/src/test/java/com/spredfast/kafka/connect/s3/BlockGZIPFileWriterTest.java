@@ -9,18 +9,25 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 
 import org.junit.Before;
 import org.junit.Test;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.PresetDictionaryCodec;
 import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
 import com.spredfast.kafka.connect.s3.json.ChunksIndex;
 import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
+import com.spredfast.kafka.connect.s3.sink.FileChannelOutputStream;
+import com.spredfast.kafka.connect.s3.sink.ParallelCompressor;
 
 public class BlockGZIPFileWriterTest {
 
@@ -87,13 +94,148 @@ public class BlockGZIPFileWriterTest {
 		verifyIndexFile(w, 987654321, expectedLines);
 	}
 
+	@Test
+	public void testWriteEncodedRecords() throws Exception {
+		BlockGZIPFileWriter listWriter = new BlockGZIPFileWriter("list-test", tmpDir, 0, 1000);
+		BlockGZIPFileWriter encodedWriter = new BlockGZIPFileWriter("encoded-test", tmpDir, 0, 1000);
+
+		String[] expectedLines = new String[50];
+		for (int i = 0; i < 50; i++) {
+			String line = String.format("Record %d of the encoder test, padded to fill several chunks %0100d", i, i);
+			expectedLines[i] = line;
+			listWriter.write(toRecord(line), 1);
+			encodedWriter.write(out -> out.write((line + '\n').getBytes()));
+		}
+		listWriter.close();
+		encodedWriter.close();
+
+		assertTrue("Should be several chunks in output file", encodedWriter.getNumChunks() > 2);
+		assertEquals(listWriter.getNumChunks(), encodedWriter.getNumChunks());
+		assertEquals(listWriter.getTotalUncompressedSize(), encodedWriter.getTotalUncompressedSize());
+		verifyOutputIsSaneGZIPFile(encodedWriter.getDataFilePath(), expectedLines);
+		verifyIndexFile(encodedWriter, 0, expectedLines);
+	}
+
+	@Test
+	public void testCheckpointsAndTimestamps() throws Exception {
+		BlockGZIPFileWriter w = new BlockGZIPFileWriter("checkpoint-test", tmpDir, 10, 1000);
+		w.setCheckpointInterval(4);
+
+		String[] expectedLines = new String[50];
+		for (int i = 0; i < 50; i++) {
+			String line = String.format("Record %d of the checkpoint test, %0" + (i % 30 + 1) + "d", i, i);
+			expectedLines[i] = line;
+			// timestamps only for the first half
+			w.write(out -> out.write((line + '\n').getBytes()), i < 25 ? 1000L + i : BlockGZIPFileWriter.NO_TIMESTAMP);
+		}
+		w.close();
+
+		assertTrue("Should be several chunks in output file", w.getNumChunks() > 2);
+		ChunksIndex index = new ObjectMapper().reader(ChunksIndex.class).readValue(new FileReader(w.getIndexFilePath()));
+		for (ChunkDescriptor chunk : index.chunks) {
+			// every 4 records, other than the start of the chunk
+			assertEquals((chunk.num_records - 1) / 4, chunk.checkpoint_offsets == null ? 0 : chunk.checkpoint_offsets.length);
+			long firstRecord = chunk.first_record_offset - 10;
+			if (firstRecord < 25) {
+				assertEquals(1000L + firstRecord, (long) chunk.min_timestamp);
+				assertEquals(1000L + Math.min(24, firstRecord + chunk.num_records - 1), (long) chunk.max_timestamp);
+			} else {
+				assertEquals(null, chunk.min_timestamp);
+			}
+		}
+		verifyIndexFile(w, 10, expectedLines);
+	}
+
+	@Test
+	public void testParallelCompression() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		BlockCodec compressor = new ParallelCompressor(BlockCodec.GZIP, executor, 300, 4);
+		BlockGZIPFileWriter w = new BlockGZIPFileWriter("parallel-test", tmpDir, 0, 5000, new byte[0], null, compressor);
+
+		String[] expectedLines = new String[500];
+		for (int i = 0; i < 500; i++) {
+			String line = String.format("Record %d of the parallel test", i);
+			expectedLines[i] = line;
+			w.write(toRecord(line), 1);
+		}
+		w.close();
+		executor.shutdown();
+
+		assertTrue("Should be several chunks in output file", w.getNumChunks() > 2);
+		verifyOutputIsSaneGZIPFile(w.getDataFilePath(), expectedLines);
+		verifyIndexFile(w, 0, expectedLines);
+	}
+
+	@Test
+	public void testMemoryMappedFile() throws Exception {
+		File file = new File(tmpDir, BlockGZIPFileWriter.dataFileName("mmap-test", 0, BlockCodec.GZIP));
+		BlockGZIPFileWriter w = new BlockGZIPFileWriter("mmap-test", tmpDir, 0, 1000, new byte[0],
+			new FileChannelOutputStream(file, 0, 4096, true));
+
+		String[] expectedLines = new String[200];
+		for (int i = 0; i < 200; i++) {
+			String line = String.format("Record %d of the mmap test %s", i, UUID.randomUUID());
+			expectedLines[i] = line;
+			w.write(toRecord(line), 1);
+		}
+		w.close();
+
+		assertTrue("Should be several chunks in output file", w.getNumChunks() > 2);
+		verifyOutputIsSaneGZIPFile(w.getDataFilePath(), expectedLines);
+		verifyIndexFile(w, 0, expectedLines);
+	}
+
+	@Test
+	public void testLz4() throws Exception {
+		BlockGZIPFileWriter w = new BlockGZIPFileWriter("lz4-test", tmpDir, 0, 5000, new byte[0], null, BlockCodec.LZ4);
+
+		String[] expectedLines = new String[500];
+		for (int i = 0; i < 500; i++) {
+			String line = String.format("Record %d of the lz4 test", i);
+			expectedLines[i] = line;
+			w.write(toRecord(line), 1);
+		}
+		w.close();
+
+		assertTrue(w.getDataFilePath().endsWith("lz4-test-000000000000.lz4"));
+		assertTrue("Should be several chunks in output file", w.getNumChunks() > 2);
+		verifyOutputIsSaneFile(BlockCodec.LZ4.decompress(new FileInputStream(w.getDataFilePath())), expectedLines);
+		verifyIndexFile(w, 0, expectedLines, BlockCodec.LZ4);
+	}
+
+	@Test
+	public void testPresetDictionary() throws Exception {
+		byte[] dictionary = "Record of the dictionary test\n".getBytes("UTF-8");
+		try (PresetDictionaryCodec codec = PresetDictionaryCodec.from("DEFAULT")) {
+			BlockGZIPFileWriter w = new BlockGZIPFileWriter("dict-test", tmpDir, 0, 500, new byte[0], null,
+				codec.withDictionary(dictionary));
+			w.setDictionaryId(PresetDictionaryCodec.id(dictionary));
+
+			String[] expectedLines = new String[200];
+			for (int i = 0; i < 200; i++) {
+				String line = String.format("Record %d of the dictionary test", i);
+				expectedLines[i] = line;
+				w.write(toRecord(line), 1);
+			}
+			w.close();
+
+			assertTrue(w.getDataFilePath().endsWith("dict-test-000000000000.zdict"));
+			verifyIndexFile(w, 0, expectedLines, codec.withDictionary(dictionary));
+			ChunksIndex index = new ObjectMapper().reader(ChunksIndex.class).readValue(new FileReader(w.getIndexFilePath()));
+			assertEquals((Long) PresetDictionaryCodec.id(dictionary), index.chunks.get(0).dictionary_id);
+		}
+	}
+
 	static List<byte[]> toRecord(String line) {
 		return Arrays.asList((line + '\n').getBytes());
 	}
 
 	private void verifyOutputIsSaneGZIPFile(String filename, String[] expectedRecords) throws Exception {
-		GZIPInputStream zip = new GZIPInputStream(new FileInputStream(filename));
-		BufferedReader r = new BufferedReader(new InputStreamReader(zip, "UTF-8"));
+		verifyOutputIsSaneFile(new GZIPInputStream(new FileInputStream(filename)), expectedRecords);
+	}
+
+	private void verifyOutputIsSaneFile(InputStream in, String[] expectedRecords) throws Exception {
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
 
 		String line;
 		int i = 0;
@@ -108,6 +250,10 @@ public class BlockGZIPFileWriterTest {
 	}
 
 	private void verifyIndexFile(BlockGZIPFileWriter w, int startOffset, String[] expectedRecords) throws Exception {
+		verifyIndexFile(w, startOffset, expectedRecords, BlockCodec.GZIP);
+	}
+
+	private void verifyIndexFile(BlockGZIPFileWriter w, int startOffset, String[] expectedRecords, BlockCodec codec) throws Exception {
 		ChunksIndex index = new ObjectMapper().reader(ChunksIndex.class).readValue(new FileReader(w.getIndexFilePath()));
 
 		assertEquals(w.getNumChunks(), index.chunks.size());
@@ -136,19 +282,28 @@ public class BlockGZIPFileWriterTest {
 
 			assertEquals(buffer.length, numBytesRead);
 
-			GZIPInputStream zip = new GZIPInputStream(new ByteArrayInputStream(buffer));
+			InputStream zip = codec.decompress(new ByteArrayInputStream(buffer));
 			BufferedReader r = new BufferedReader(new InputStreamReader(zip, "UTF-8"));
 
 			int numRecordsActuallyInChunk = 0;
+			long[] recordPositions = new long[numRecords];
+			long position = 0;
 			String line;
 			while ((line = r.readLine()) != null) {
 				assertEquals(expectedRecords[recordIndex], line);
+				recordPositions[numRecordsActuallyInChunk] = position;
+				position += line.getBytes("UTF-8").length + 1;
 				recordIndex++;
 				numRecordsActuallyInChunk++;
 			}
 
 			assertEquals(numRecordsActuallyInChunk, numRecords);
 
+			// each checkpoint is where its record starts
+			for (int c = 0; chunk.checkpoint_offsets != null && c < chunk.checkpoint_offsets.length; c++) {
+				assertEquals(recordPositions[(int) (chunk.checkpoint_offsets[c] - firstOffset)], chunk.checkpoint_positions[c]);
+			}
+
 			totalBytes += byteLength;
 
 			expectedStartOffset = firstOffset + numRecords;
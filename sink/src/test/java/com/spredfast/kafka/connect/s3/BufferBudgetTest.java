@@ -0,0 +1,72 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import com.spredfast.kafka.connect.s3.sink.BufferBudget;
+
+public class BufferBudgetTest {
+
+	private final TopicPartition hot = new TopicPartition("topic", 0);
+	private final TopicPartition warm = new TopicPartition("topic", 1);
+	private final TopicPartition cold = new TopicPartition("topic", 2);
+	private final List<TopicPartition> assigned = Arrays.asList(hot, warm, cold);
+
+	private final BufferBudget budget = new BufferBudget(1000, 500);
+	private final List<TopicPartition> paused = new ArrayList<>();
+	private final List<TopicPartition> resumed = new ArrayList<>();
+
+	@Test
+	public void testPausesHottestPartitionsAboveHighWaterMark() {
+		update(open(600, 300, 100));
+		assertEquals(Collections.singletonList(hot), paused);
+		assertEquals(1000, budget.totalBytes());
+		assertEquals(600, budget.bufferedBytes(hot));
+
+		// still above the high water mark, but the partitions left consuming are below the low water mark
+		update(open(600, 350, 100));
+		assertEquals(Collections.singletonList(hot), paused);
+
+		update(open(600, 500, 100));
+		assertEquals(Arrays.asList(hot, warm), paused);
+		assertTrue(resumed.isEmpty());
+	}
+
+	@Test
+	public void testResumesOnceQueuedFilesAreUploaded() {
+		budget.queued(hot, 900);
+		update(open(0, 100, 0));
+		assertEquals(Collections.singletonList(hot), paused);
+
+		// uploaded, but still above the low water mark
+		budget.uploaded(hot, 300);
+		update(open(0, 100, 0));
+		assertTrue(resumed.isEmpty());
+
+		budget.uploaded(hot, 600);
+		update(open(0, 100, 0));
+		assertEquals(Collections.singletonList(hot), resumed);
+		assertTrue(budget.paused().isEmpty());
+	}
+
+	private void update(Map<TopicPartition, Long> open) {
+		budget.update(assigned, open, paused::addAll, resumed::addAll);
+	}
+
+	private Map<TopicPartition, Long> open(long... bytes) {
+		Map<TopicPartition, Long> open = new HashMap<>();
+		for (int i = 0; i < bytes.length; i++) {
+			open.put(assigned.get(i), bytes[i]);
+		}
+		return open;
+	}
+}
@@ -0,0 +1,53 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+import com.spredfast.kafka.connect.s3.sink.FileChannelOutputStream;
+
+public class FileChannelOutputStreamTest {
+
+	@Test
+	public void testBuffered() throws IOException {
+		assertWritesExactly(5000, 0, false);
+	}
+
+	@Test
+	public void testPreallocated() throws IOException {
+		assertWritesExactly(5000, 1024 * 1024, false);
+	}
+
+	@Test
+	public void testMemoryMapped() throws IOException {
+		// small windows, so writes cross several mappings
+		assertWritesExactly(0, 10_000, true);
+	}
+
+	private void assertWritesExactly(int bufferSize, long preallocate, boolean mmap) throws IOException {
+		File file = new File(Files.createTempDirectory("file-channel-test").toFile(), "data.gz");
+		byte[] data = new byte[100_000];
+		new Random(42).nextBytes(data);
+
+		try (FileChannelOutputStream out = new FileChannelOutputStream(file, bufferSize, preallocate, mmap)) {
+			int i = 0;
+			// a mix of small, single byte and larger-than-buffer writes
+			for (int len = 1; i + len <= data.length; i += len, len = len * 3 % 20_011) {
+				out.write(data, i, len);
+				if (i + len < data.length) {
+					out.write(data[i + len]);
+					i++;
+				}
+			}
+			out.write(data, i, data.length - i);
+			assertEquals(data.length, out.size());
+		}
+
+		assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+	}
+}
@@ -0,0 +1,37 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import com.spredfast.kafka.connect.s3.sink.RotationPolicy;
+
+public class RotationPolicyTest {
+
+	@Test
+	public void testRotatesAtAnyLimit() {
+		RotationPolicy policy = new RotationPolicy(1000, 10, 60_000, 0);
+
+		assertFalse(policy.shouldRotate(999, 9));
+		assertTrue(policy.shouldRotate(1000, 1));
+		assertTrue(policy.shouldRotate(1, 10));
+		assertFalse(policy.isExpired(59_999));
+		assertTrue(policy.isExpired(60_000));
+	}
+
+	@Test
+	public void testDisabledLimits() {
+		assertFalse(RotationPolicy.NONE.shouldRotate(Long.MAX_VALUE, Long.MAX_VALUE));
+		assertFalse(RotationPolicy.NONE.isExpired(Long.MAX_VALUE));
+		assertFalse(RotationPolicy.NONE.keepOpen(0, 0));
+	}
+
+	@Test
+	public void testSmallFilesKeptOpenUntilTheyExpire() {
+		RotationPolicy policy = new RotationPolicy(0, 0, 60_000, 1000);
+
+		assertTrue(policy.keepOpen(999, 0));
+		assertFalse(policy.keepOpen(1000, 0));
+		assertFalse(policy.keepOpen(999, 60_000));
+	}
+}
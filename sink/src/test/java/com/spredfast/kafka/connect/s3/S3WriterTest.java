@@ -1,23 +1,35 @@
 package com.spredfast.kafka.connect.s3;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.startsWith;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.kafka.common.TopicPartition;
 import org.junit.Before;
@@ -25,11 +37,23 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import com.spredfast.kafka.connect.s3.json.CoalescedIndex;
 import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
+import com.spredfast.kafka.connect.s3.sink.MultipartUploadOutputStream;
 import com.spredfast.kafka.connect.s3.sink.S3Writer;
 
 /**
@@ -151,6 +175,212 @@ public class S3WriterTest {
 			getKeyForFilename("pfx", "bar-00000-000000000000.index.json"));
 	}
 
+	@Test
+	public void testUploadWithKeyLayout() throws Exception {
+		AmazonS3 s3Mock = mock(AmazonS3.class);
+		TransferManager tmMock = mock(TransferManager.class);
+		BlockGZIPFileWriter fileWriter = createDummmyFiles(0, 1000);
+		S3Writer s3Writer = new S3Writer(testBucket, "pfx", s3Mock, tmMock);
+		s3Writer.setKeyLayout(new KeyLayout("{topic}/{partition}/{yyyy}-{MM}-{dd}"));
+		TopicPartition tp = new TopicPartition("bar", 0);
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String dir = "pfx/bar/00000/" + df.format(new Date()) + "/";
+
+		Upload mockUpload = mock(Upload.class);
+		when(tmMock.upload(eq(testBucket), isA(String.class), isA(File.class))).thenReturn(mockUpload);
+
+		s3Writer.putChunk(fileWriter.getDataFilePath(), fileWriter.getIndexFilePath(), tp);
+
+		verifyTMUpload(tmMock, new ExpectedRequestParams[]{
+			new ExpectedRequestParams(dir + "bar-00000-000000000000.gz", testBucket),
+			new ExpectedRequestParams(dir + "bar-00000-000000000000.index.json", testBucket)
+		});
+		// the cursor stays where it was
+		verifyStringPut(s3Mock, "pfx/last_chunk_index.bar-00000.txt", dir + "bar-00000-000000000000.index.json");
+	}
+
+	@Test
+	public void testFetchOffsets() throws Exception {
+		AmazonS3 s3Mock = mock(AmazonS3.class);
+		S3Writer s3Writer = new S3Writer(testBucket, "pfx", s3Mock);
+		String indexKey = getKeyForFilename("pfx", "bar-00000-000000010042.index.json");
+		AmazonS3Exception notFound = new AmazonS3Exception("The specified key does not exist.");
+		notFound.setStatusCode(404);
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/last_chunk_index.bar-00000.txt")))
+			.thenReturn(makeMockS3Object("pfx/last_chunk_index.bar-00000.txt", indexKey));
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/last_chunk_index.bar-00001.txt")))
+			.thenThrow(notFound);
+		when(s3Mock.getObject(eq(testBucket), eq(indexKey)))
+			.thenReturn(makeMockS3Object(indexKey,
+				"{\"chunks\":[{\"first_record_offset\":10042,\"num_records\":1000,\"byte_offset\":0,\"byte_length\":10000}]}"));
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Map<TopicPartition, Long> offsets = s3Writer.fetchOffsets(
+				Arrays.asList(new TopicPartition("bar", 0), new TopicPartition("bar", 1)), executor);
+
+			// nothing for the partition without a cursor
+			assertEquals(Collections.singletonMap(new TopicPartition("bar", 0), 11042L), offsets);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCursorManifest() throws Exception {
+		AmazonS3 s3Mock = mock(AmazonS3.class);
+		TransferManager tmMock = mock(TransferManager.class);
+		when(tmMock.upload(eq(testBucket), any(String.class), isA(File.class))).thenReturn(mock(Upload.class));
+		BlockGZIPFileWriter fileWriter = createDummmyFiles(0, 10);
+		S3Writer s3Writer = new S3Writer(testBucket, "pfx", s3Mock, tmMock);
+		s3Writer.useCursorManifest("conn-0");
+
+		s3Writer.putChunk(fileWriter.getDataFilePath(), fileWriter.getIndexFilePath(), new TopicPartition("bar", 0));
+		verify(s3Mock, never()).putObject(any(PutObjectRequest.class));
+
+		s3Writer.flushCursors();
+		// nothing new to write
+		s3Writer.flushCursors();
+
+		verifyStringPut(s3Mock, "pfx/cursors/conn-0.json",
+			"{\"bar-00000\":\"" + getKeyForFilename("pfx", "bar-00000-000000000000.index.json") + "\"}");
+	}
+
+	@Test
+	public void testFetchOffsetFromManifests() throws Exception {
+		AmazonS3 s3Mock = mock(AmazonS3.class);
+		S3Writer s3Writer = new S3Writer(testBucket, "pfx", s3Mock);
+		s3Writer.useCursorManifest("conn-1");
+		String oldIndexKey = getKeyForFilename("pfx", "bar-00000-000000000000.index.json");
+		String indexKey = getKeyForFilename("pfx", "bar-00000-000000010042.index.json");
+
+		// written before switching to manifests
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/last_chunk_index.bar-00000.txt")))
+			.thenReturn(makeMockS3Object("pfx/last_chunk_index.bar-00000.txt", oldIndexKey));
+		// the partition moved from task 0 to task 1
+		ObjectListing listing = new ObjectListing();
+		for (String manifest : Arrays.asList("pfx/cursors/conn-0.json", "pfx/cursors/conn-1.json")) {
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setKey(manifest);
+			listing.getObjectSummaries().add(summary);
+		}
+		when(s3Mock.listObjects(testBucket, "pfx/cursors/")).thenReturn(listing);
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/cursors/conn-0.json")))
+			.thenReturn(makeMockS3Object("pfx/cursors/conn-0.json", "{\"bar-00000\":\"" + oldIndexKey + "\"}"));
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/cursors/conn-1.json")))
+			.thenReturn(makeMockS3Object("pfx/cursors/conn-1.json", "{\"bar-00000\":\"" + indexKey + "\"}"));
+		when(s3Mock.getObject(eq(testBucket), eq(indexKey)))
+			.thenReturn(makeMockS3Object(indexKey,
+				"{\"chunks\":[{\"first_record_offset\":10042,\"num_records\":1000,\"byte_offset\":0,\"byte_length\":10000}]}"));
+
+		assertEquals(11042, s3Writer.fetchOffset(new TopicPartition("bar", 0)));
+		verify(s3Mock, never()).getObject(testBucket, oldIndexKey);
+	}
+
+	@Test
+	public void testCoalescedUpload() throws Exception {
+		AmazonS3 s3Mock = mock(AmazonS3.class);
+		TransferManager tmMock = mock(TransferManager.class);
+		ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+		ArgumentCaptor<String> dataKey = ArgumentCaptor.forClass(String.class);
+		when(tmMock.upload(eq(testBucket), dataKey.capture(), isA(InputStream.class), isA(ObjectMetadata.class))).thenAnswer(invocation -> {
+			InputStream in = (InputStream) invocation.getArguments()[2];
+			for (int b = in.read(); b >= 0; b = in.read()) {
+				uploaded.write(b);
+			}
+			return mock(Upload.class);
+		});
+		BlockGZIPFileWriter p0 = new BlockGZIPFileWriter("bar-00000", tmpDir, 5);
+		p0.write(Arrays.asList("Record 5".getBytes()), 1);
+		p0.close();
+		BlockGZIPFileWriter p1 = createDummmyFiles(10, 3);
+		S3Writer s3Writer = new S3Writer(testBucket, "pfx", s3Mock, tmMock);
+		s3Writer.useCoalescing("conn-0");
+		// no cursors yet
+		AmazonS3Exception notFound = new AmazonS3Exception("The specified key does not exist.");
+		notFound.setStatusCode(404);
+		when(s3Mock.getObject(eq(testBucket), startsWith("pfx/last_chunk_index."))).thenThrow(notFound);
+
+		s3Writer.putCoalesced(Arrays.asList(
+			new S3Writer.Part(new TopicPartition("bar", 0), p0.getDataFilePath(), p0.getIndexFilePath()),
+			new S3Writer.Part(new TopicPartition("bar", 1), p1.getDataFilePath(), p1.getIndexFilePath())));
+
+		byte[] first = Files.readAllBytes(new File(p0.getDataFilePath()).toPath());
+		byte[] second = Files.readAllBytes(new File(p1.getDataFilePath()).toPath());
+		assertEquals(first.length + second.length, uploaded.size());
+		assertTrue(dataKey.getValue().matches("pfx/coalesced/\\d{13}-conn-0-000001\\.coalesced\\.gz"));
+
+		// the index, then a cursor per partition, all pointing at the index
+		ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+		verify(s3Mock, times(3)).putObject(puts.capture());
+		PutObjectRequest indexPut = puts.getAllValues().get(0);
+		String indexKey = indexPut.getKey();
+		assertEquals(dataKey.getValue().replace(".coalesced.gz", ".coalesced.index.json"), indexKey);
+		CoalescedIndex index = new ObjectMapper().readValue(indexPut.getInputStream(), CoalescedIndex.class);
+		assertEquals(2, index.parts.size());
+		assertEquals(first.length, index.parts.get(1).byte_offset);
+		assertEquals(second.length, index.parts.get(1).byte_length);
+		assertEquals(10, index.parts.get(1).first_record_offset);
+		assertEquals(12, index.parts.get(1).last_record_offset);
+		assertEquals("pfx/last_chunk_index.bar-00001.txt", puts.getAllValues().get(2).getKey());
+
+		// and offsets are recovered from it
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/last_chunk_index.bar-00001.txt")))
+			.thenReturn(makeMockS3Object("pfx/last_chunk_index.bar-00001.txt", indexKey));
+		when(s3Mock.getObject(eq(testBucket), eq(indexKey)))
+			.thenReturn(makeMockS3Object(indexKey, new ObjectMapper().writeValueAsString(index)));
+		assertEquals(13, s3Writer.fetchOffset(new TopicPartition("bar", 1)));
+
+		// an upload of earlier offsets finishing late doesn't move the cursor back
+		BlockGZIPFileWriter late = createDummmyFiles(0, 3);
+		s3Writer.putCoalesced(Collections.singletonList(
+			new S3Writer.Part(new TopicPartition("bar", 1), late.getDataFilePath(), late.getIndexFilePath())));
+		verify(s3Mock, times(4)).putObject(puts.capture());
+		assertTrue(puts.getValue().getKey().endsWith(CoalescedIndex.SUFFIX));
+	}
+
+	@Test
+	public void testFetchOffsetOfLatestCoalescedIndex() throws Exception {
+		AmazonS3 s3Mock = mock(AmazonS3.class);
+		S3Writer s3Writer = new S3Writer(testBucket, "pfx", s3Mock, mock(TransferManager.class));
+		s3Writer.useCursorManifest("conn-0");
+		// uploaded later, by the clock of the worker, but with earlier offsets
+		String staleKey = "pfx/coalesced/0000000002000-conn-1-000001" + CoalescedIndex.SUFFIX;
+		String indexKey = "pfx/coalesced/0000000001000-conn-0-000007" + CoalescedIndex.SUFFIX;
+		AmazonS3Exception notFound = new AmazonS3Exception("The specified key does not exist.");
+		notFound.setStatusCode(404);
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/last_chunk_index.bar-00000.txt"))).thenThrow(notFound);
+		ObjectListing listing = new ObjectListing();
+		for (String manifest : Arrays.asList("pfx/cursors/conn-0.json", "pfx/cursors/conn-1.json")) {
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setKey(manifest);
+			listing.getObjectSummaries().add(summary);
+		}
+		when(s3Mock.listObjects(testBucket, "pfx/cursors/")).thenReturn(listing);
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/cursors/conn-0.json")))
+			.thenReturn(makeMockS3Object("pfx/cursors/conn-0.json", "{\"bar-00000\":\"" + indexKey + "\"}"));
+		when(s3Mock.getObject(eq(testBucket), eq("pfx/cursors/conn-1.json")))
+			.thenReturn(makeMockS3Object("pfx/cursors/conn-1.json", "{\"bar-00000\":\"" + staleKey + "\"}"));
+		when(s3Mock.getObject(eq(testBucket), eq(indexKey))).thenReturn(makeMockS3Object(indexKey, coalescedIndex(100, 199)));
+		when(s3Mock.getObject(eq(testBucket), eq(staleKey))).thenReturn(makeMockS3Object(staleKey, coalescedIndex(0, 99)));
+
+		assertEquals(200, s3Writer.fetchOffset(new TopicPartition("bar", 0)));
+	}
+
+	private static String coalescedIndex(long firstOffset, long lastOffset) throws Exception {
+		CoalescedIndex index = new CoalescedIndex();
+		index.extension = "gz";
+		CoalescedIndex.Part part = new CoalescedIndex.Part();
+		part.topic = "bar";
+		part.partition = 0;
+		part.first_record_offset = firstOffset;
+		part.last_record_offset = lastOffset;
+		part.chunks = Collections.emptyList();
+		index.parts = Collections.singletonList(part);
+		return new ObjectMapper().writeValueAsString(index);
+	}
+
 	private S3Object makeMockS3Object(String key, String contents) throws Exception {
 		S3Object mock = new S3Object();
 		mock.setBucketName(this.testBucket);
@@ -214,4 +444,55 @@ public class S3WriterTest {
 		verify(s3Mock).getObject(eq(testBucket), eq(indexKey));
 
 	}
+
+	@Test
+	public void testStreamedUpload() throws Exception {
+		AmazonS3 s3Mock = mock(AmazonS3.class);
+		TransferManager tmMock = mock(TransferManager.class);
+		when(tmMock.upload(eq(testBucket), any(String.class), isA(File.class))).thenReturn(mock(Upload.class));
+		S3Writer s3Writer = new S3Writer(testBucket, "pfx", s3Mock, tmMock);
+		TopicPartition tp = new TopicPartition("bar", 0);
+
+		InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+		initiated.setUploadId("upload-1");
+		when(s3Mock.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+		ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+		when(s3Mock.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+			UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+			byte[] part = new byte[(int) request.getPartSize()];
+			new DataInputStream(request.getInputStream()).readFully(part);
+			uploaded.write(part);
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag("etag" + request.getPartNumber());
+			return result;
+		});
+
+		MultipartUploadOutputStream stream = s3Writer.streamChunk(BlockGZIPFileWriter.dataFileName("bar-00000", 0, BlockCodec.GZIP), tp, null);
+		BlockGZIPFileWriter writer = new BlockGZIPFileWriter("bar-00000", tmpDir, 0, 1024 * 1024, new byte[0], stream);
+		// incompressible, so each 1MB chunk is about 1MB compressed and we need a few 5MB parts
+		Random random = new Random(0);
+		for (int i = 0; i < 12 * 1024; i++) {
+			byte[] record = new byte[1024];
+			random.nextBytes(record);
+			writer.write(Arrays.asList(record), 1);
+		}
+		writer.close();
+
+		s3Writer.putStreamedChunk(stream, writer.getIndexFilePath(), tp);
+
+		ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		verify(s3Mock).completeMultipartUpload(complete.capture());
+		assertEquals(getKeyForFilename("pfx", "bar-00000-000000000000.gz"), complete.getValue().getKey());
+		assertEquals(3, complete.getValue().getPartETags().size());
+
+		ChunksIndex index = new ObjectMapper().reader(ChunksIndex.class).readValue(new File(writer.getIndexFilePath()));
+		assertEquals(index.totalSize(), uploaded.size());
+
+		verifyTMUpload(tmMock, new ExpectedRequestParams[]{
+			new ExpectedRequestParams(getKeyForFilename("pfx", "bar-00000-000000000000.index.json"), testBucket)
+		});
+		verifyStringPut(s3Mock, "pfx/last_chunk_index.bar-00000.txt",
+			getKeyForFilename("pfx", "bar-00000-000000000000.index.json"));
+	}
 }
@@ -0,0 +1,82 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+import com.spredfast.kafka.connect.s3.sink.DirectBufferPool;
+import com.spredfast.kafka.connect.s3.sink.SpillableOutputStream;
+
+public class SpillableOutputStreamTest {
+
+	@Test
+	public void testKeptInMemory() throws IOException {
+		DirectBufferPool pool = new DirectBufferPool(1024, 100);
+		File spillFile = new File(Files.createTempDirectory("spill-test").toFile(), "data.gz");
+		byte[] data = randomBytes(950);
+
+		SpillableOutputStream out = new SpillableOutputStream(pool, spillFile);
+		out.write(data, 0, 500);
+		out.write(data[500]);
+		out.write(data, 501, 449);
+		out.close();
+
+		assertFalse(out.isSpilled());
+		assertFalse(spillFile.exists());
+		assertEquals(950, out.length());
+		assertEquals(1000, pool.bytesInUse());
+
+		InputStream in = out.openInputStream();
+		in.mark(Integer.MAX_VALUE);
+		assertArrayEquals(data, readAll(in));
+		// as an upload retry would
+		in.reset();
+		assertArrayEquals(data, readAll(in));
+
+		out.release();
+		assertEquals(0, pool.bytesInUse());
+	}
+
+	@Test
+	public void testSpillsWhenBudgetIsUsed() throws IOException {
+		DirectBufferPool pool = new DirectBufferPool(1000, 100);
+		File spillFile = new File(Files.createTempDirectory("spill-test").toFile(), "data.gz");
+		byte[] data = randomBytes(2500);
+
+		SpillableOutputStream out = new SpillableOutputStream(pool, spillFile);
+		for (int i = 0; i < data.length; i += 300) {
+			out.write(data, i, Math.min(300, data.length - i));
+		}
+		out.close();
+
+		assertTrue(out.isSpilled());
+		assertEquals(2500, out.length());
+		assertEquals("buffers go back to the pool once spilled", 0, pool.bytesInUse());
+		assertArrayEquals(data, Files.readAllBytes(spillFile.toPath()));
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,65 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.spredfast.kafka.connect.s3.sink.UploadJournal;
+
+public class UploadJournalTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final TopicPartition tp = new TopicPartition("topic", 0);
+
+	@Test
+	public void testRecoveredAfterRestart() throws IOException {
+		File dir = new File(tmp.getRoot(), "upload-queue");
+		UploadJournal journal = new UploadJournal(dir);
+		journal.add(tp, 10, 20, file("b.gz", 100), file("b.index.json", 10));
+		journal.add(tp, 0, 10, file("a.gz", 100), file("a.index.json", 10));
+		journal.add(new TopicPartition("topic-2", 0), 0, 5, file("c.gz", 100), file("c.index.json", 10));
+		assertEquals(330, journal.bytes());
+
+		UploadJournal restarted = new UploadJournal(dir);
+		List<UploadJournal.Entry> recovered = restarted.recover(tp);
+		assertEquals(Arrays.asList(0L, 10L), recovered.stream().map(e -> e.first_offset).collect(Collectors.toList()));
+		assertEquals(20, recovered.get(1).next_offset);
+		assertEquals(220, restarted.bytes());
+		assertTrue("only recovered once", restarted.recover(tp).isEmpty());
+
+		restarted.remove(recovered.get(0));
+		assertEquals(110, restarted.bytes());
+		assertFalse(new File(recovered.get(0).data_file).exists());
+		assertFalse(new File(recovered.get(0).index_file).exists());
+		assertEquals(1, new UploadJournal(dir).recover(tp).size());
+	}
+
+	@Test
+	public void testDropsEntriesWithoutFiles() throws IOException {
+		File dir = new File(tmp.getRoot(), "upload-queue");
+		UploadJournal.Entry entry = new UploadJournal(dir).add(tp, 0, 10, file("a.gz", 100), file("a.index.json", 10));
+		assertTrue(new File(entry.data_file).delete());
+
+		assertTrue(new UploadJournal(dir).recover(tp).isEmpty());
+		assertEquals(0, dir.list().length);
+	}
+
+	private String file(String name, int size) throws IOException {
+		File file = tmp.newFile(name);
+		Files.write(file.toPath(), new byte[size]);
+		return file.getPath();
+	}
+}
@@ -0,0 +1,143 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import com.spredfast.kafka.connect.s3.sink.UploadQueue;
+
+public class UploadQueueTest {
+
+	private final TopicPartition tp = new TopicPartition("topic", 0);
+
+	@Test
+	public void testUploadsCompleteInOrderPerPartition() throws Exception {
+		UploadQueue queue = new UploadQueue(Executors.newFixedThreadPool(4));
+		List<Long> completed = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch firstMayFinish = new CountDownLatch(1);
+
+		queue.submit(tp, 0, 10, () -> {
+			await(firstMayFinish);
+			completed.add(0L);
+		}, () -> {});
+		queue.submit(tp, 10, 20, () -> completed.add(10L), () -> {});
+
+		firstMayFinish.countDown();
+		queue.awaitAll();
+
+		assertEquals(Arrays.asList(0L, 10L), completed);
+		assertEquals(Long.valueOf(20), queue.uploadedOffsets().get(tp));
+		queue.close();
+	}
+
+	@Test
+	public void testFailureSkipsLaterUploadsAndReportsFirstOffset() throws Exception {
+		UploadQueue queue = new UploadQueue(Executors.newFixedThreadPool(2));
+		AtomicInteger cleanedUp = new AtomicInteger();
+		AtomicInteger uploaded = new AtomicInteger();
+
+		queue.submit(tp, 0, 10, uploaded::incrementAndGet, cleanedUp::incrementAndGet);
+		queue.submit(tp, 10, 20, () -> {
+			throw new IOException("S3 is down");
+		}, cleanedUp::incrementAndGet);
+		queue.submit(tp, 20, 30, uploaded::incrementAndGet, cleanedUp::incrementAndGet);
+		queue.awaitAll();
+
+		assertEquals(1, uploaded.get());
+		assertEquals(3, cleanedUp.get());
+		assertEquals(Long.valueOf(10), queue.uploadedOffsets().get(tp));
+		assertEquals(Long.valueOf(10), queue.failures().get(tp));
+		assertTrue("failures are only reported once", queue.failures().isEmpty());
+
+		// a fresh chain starts after the failure has been handled
+		queue.submit(tp, 10, 15, uploaded::incrementAndGet, cleanedUp::incrementAndGet);
+		queue.awaitAll();
+		assertEquals(Long.valueOf(15), queue.uploadedOffsets().get(tp));
+		queue.close();
+	}
+
+	@Test
+	public void testUploadOfSeveralPartitions() throws Exception {
+		UploadQueue queue = new UploadQueue(Executors.newFixedThreadPool(2));
+		AtomicInteger uploaded = new AtomicInteger();
+
+		queue.submit(tp, 0, 10, () -> {
+			throw new IOException("S3 is down");
+		}, () -> {});
+		queue.submit(offsets(10, 5), offsets(20, 15), uploaded::incrementAndGet, () -> {});
+		queue.awaitAll();
+
+		// skipped behind tp's failure, so the other partition has to be rewound too
+		assertEquals(0, uploaded.get());
+		assertEquals(offsets(0, 5), queue.failures());
+
+		queue.submit(offsets(0, 5), offsets(20, 15), uploaded::incrementAndGet, () -> {});
+		queue.awaitAll();
+		assertEquals(offsets(20, 15), queue.uploadedOffsets());
+		queue.close();
+	}
+
+	private Map<TopicPartition, Long> offsets(long first, long second) {
+		Map<TopicPartition, Long> offsets = new HashMap<>();
+		offsets.put(tp, first);
+		offsets.put(new TopicPartition("topic", 1), second);
+		return offsets;
+	}
+
+	@Test
+	public void testRetriesUntilUploaded() throws Exception {
+		UploadQueue queue = new UploadQueue(Executors.newFixedThreadPool(2), 1, 4);
+		AtomicInteger attempts = new AtomicInteger();
+
+		queue.submit(tp, 0, 10, () -> {
+			if (attempts.incrementAndGet() < 4) {
+				throw new IOException("S3 is down");
+			}
+		}, () -> {});
+		queue.awaitAll();
+
+		assertEquals(4, attempts.get());
+		assertEquals(Long.valueOf(10), queue.uploadedOffsets().get(tp));
+		assertTrue(queue.failures().isEmpty());
+		queue.close();
+	}
+
+	@Test
+	public void testCloseGivesUpRetrying() throws Exception {
+		UploadQueue queue = new UploadQueue(Executors.newFixedThreadPool(2), 60_000, 60_000);
+		CountDownLatch attempted = new CountDownLatch(1);
+		AtomicInteger cleanedUp = new AtomicInteger();
+
+		queue.submit(tp, 0, 10, () -> {
+			attempted.countDown();
+			throw new IOException("S3 is down");
+		}, cleanedUp::incrementAndGet);
+		attempted.await();
+		// doesn't wait out the backoff
+		queue.close();
+
+		assertEquals(1, cleanedUp.get());
+		assertTrue(queue.uploadedOffsets().isEmpty());
+		assertTrue(queue.failures().isEmpty());
+	}
+
+	private static void await(CountDownLatch latch) throws IOException {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -1,45 +1,57 @@
 package com.spredfast.kafka.connect.s3.source;
 
+import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.BiPredicate;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
+import com.spredfast.kafka.connect.s3.BinaryChunksIndex;
+import com.spredfast.kafka.connect.s3.BlockCodec;
 import com.spredfast.kafka.connect.s3.LazyString;
+import com.spredfast.kafka.connect.s3.PresetDictionaryCodec;
 import com.spredfast.kafka.connect.s3.S3RecordsReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
-import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import com.spredfast.kafka.connect.s3.json.CoalescedIndex;
 
 /**
  * Helpers for reading records out of S3. Not thread safe.
  * Records should be in order since S3 lists files in lexicographic order.
- * It is strongly recommended that you use a unique key prefix per topic as
- * there is no option to restrict this reader by topic.
+ * It is strongly recommended that you use a unique key prefix per topic, or a
+ * {@link com.spredfast.kafka.connect.s3.KeyLayout} by topic and partition, as otherwise every key under the prefix is
+ * listed, even those of partitions that are filtered out.
+ * <p>
+ * With {@link S3SourceConfig#coalesced}, only the coalesced objects of sinks with upload.coalesce are read instead.
+ * Each one's index is read first, then each part we want with a ranged GET. Their keys don't sort in the order they
+ * became visible (uploads finish out of order, and sinks' clocks differ), so every pass lists all of them, and skips
+ * those already read and the parts of partitions we are already past.
  * <p>
  * NOTE: hasNext() on the returned iterators may throw AmazonClientException if there
  * was a problem communicating with S3 or reading an object. Your code should
@@ -55,19 +67,30 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 		"(\\/|^)"                        // match the / or the start of the key so we shouldn't have to worry about prefix
 			+ "(?<topic>[^/]+?)-"            // assuming no / in topic names
 			+ "(?<partition>\\d{5})-"
-			+ "(?<offset>\\d{12})\\.gz$"
+			+ "(?<offset>\\d{12})\\.(" + extensions() + ")$"
 	);
 
+	// any data file extension we know how to decompress
+	private static String extensions() {
+		return BlockCodec.ALL.stream().map(BlockCodec::extension).map(Pattern::quote).collect(joining("|"));
+	}
+
+	private static final ObjectReader COALESCED_INDEX = new ObjectMapper().reader(CoalescedIndex.class);
+
 	private final AmazonS3 s3Client;
 
 	private final Supplier<S3RecordsReader> makeReader;
 
 	private final Map<S3Partition, S3Offset> offsets;
 
-	private final ObjectReader indexParser = new ObjectMapper().reader(ChunksIndex.class);
-
 	private final S3SourceConfig config;
 
+	// with S3SourceConfig#listPrefixesPerPartition, the last data file read under each prefix, to list after
+	private final Map<String, String> listedUpTo = new HashMap<>();
+
+	// with S3SourceConfig#coalesced, the indexes read so far that were still there when last listed
+	private final Set<String> readIndexes = new HashSet<>();
+
 	public S3FilesReader(S3SourceConfig config, AmazonS3 s3Client, Map<S3Partition, S3Offset> offsets, Supplier<S3RecordsReader> recordReader) {
 		this.config = config;
 		this.offsets = Optional.ofNullable(offsets).orElseGet(HashMap::new);
@@ -79,6 +102,14 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 		return readAll();
 	}
 
+	private String marker(String prefix) {
+		String marker = listedUpTo.get(prefix);
+		if (marker == null || (config.startMarker != null && config.startMarker.compareTo(marker) > 0)) {
+			return config.startMarker;
+		}
+		return marker;
+	}
+
 	public interface PartitionFilter {
 		// convenience for simple filters. Only the 2 argument version will ever be called.
 		boolean matches(int partition);
@@ -104,7 +135,7 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 		PartitionFilter MATCH_ALL = p -> true;
 	}
 
-	private static final Pattern DATA_SUFFIX = Pattern.compile("\\.gz$");
+	private static final Pattern DATA_SUFFIX = Pattern.compile("\\.(" + extensions() + ")$");
 
 	private int partition(String key) {
 		final Matcher matcher = config.keyPattern.matcher(key);
@@ -122,42 +153,82 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 		return matcher.group("topic");
 	}
 
+	/**
+	 * Once an iterator is exhausted, call again to pick up new files. With
+	 * {@link S3SourceConfig#listPrefixesPerPartition}, listing then carries on after the last file read, rather than
+	 * listing every file again to skip those already read.
+	 */
 	public Iterator<S3SourceRecord> readAll() {
 		return new Iterator<S3SourceRecord>() {
 			String currentKey;
 
+			// the prefixes to list, one after the other, and which one we're on
+			final List<String> prefixes = listPrefixes();
+			int prefix;
 			ObjectListing objectListing;
 			Iterator<S3ObjectSummary> nextFile = Collections.emptyIterator();
+			// the parts of the current coalesced object still to read
+			Iterator<PartReader> nextPart = Collections.emptyIterator();
 			Iterator<ConsumerRecord<byte[], byte[]>> iterator = Collections.emptyIterator();
+			// the index listed for each data file in the current prefix, by key without the suffix. a data file and
+			// its index can be on different pages
+			Map<String, String> listedIndexes = new HashMap<>();
+			// with S3SourceConfig#coalesced, every index listed in this pass
+			Set<String> listedCoalesced = new HashSet<>();
 
 			private void nextObject() {
+				if (nextPart.hasNext()) {
+					try {
+						iterator = nextPart.next().read();
+					} catch (IOException e) {
+						throw new AmazonClientException(e);
+					}
+					return;
+				}
 				while (!nextFile.hasNext() && hasMoreObjects()) {
 
 					// partitions will be read completely for each prefix (e.g., a day) in order.
 					// i.e., all of partition 0 will be read before partition 1. Seems like that will make perf wonky if
 					// there is an active, multi-partition consumer on the other end.
 					// to mitigate that, have as many tasks as partitions.
+					if (objectListing != null && !objectListing.isTruncated()) {
+						// done with this prefix
+						prefix++;
+						objectListing = null;
+						listedIndexes.clear();
+					}
 					if (objectListing == null) {
 						objectListing = s3Client.listObjects(new ListObjectsRequest(
 							config.bucket,
-							config.keyPrefix,
-							config.startMarker,
+							prefixes.get(prefix),
+							marker(prefixes.get(prefix)),
 							null,
 							// we have to filter out chunk indexes on this end, so
 							// whatever the requested page size is, we'll need twice that
 							config.pageSize * 2
 						));
-						log.debug("aws ls {}/{} after:{} = {}", config.bucket, config.keyPrefix, config.startMarker,
+						log.debug("aws ls {}/{} after:{} = {}", config.bucket, prefixes.get(prefix), marker(prefixes.get(prefix)),
 							LazyString.of(() -> objectListing.getObjectSummaries().stream().map(S3ObjectSummary::getKey).collect(toList())));
 					} else {
 						String marker = objectListing.getNextMarker();
 						objectListing = s3Client.listNextBatchOfObjects(objectListing);
-						log.debug("aws ls {}/{} after:{} = {}", config.bucket, config.keyPrefix, marker,
+						log.debug("aws ls {}/{} after:{} = {}", config.bucket, prefixes.get(prefix), marker,
 							LazyString.of(() -> objectListing.getObjectSummaries().stream().map(S3ObjectSummary::getKey).collect(toList())));
 					}
 
 					List<S3ObjectSummary> chunks = new ArrayList<>(objectListing.getObjectSummaries().size() / 2);
 					for (S3ObjectSummary chunk : objectListing.getObjectSummaries()) {
+						if (config.coalesced) {
+							// which parts to read is only known from the index
+							if (CoalescedIndex.isIndex(chunk.getKey())) {
+								listedCoalesced.add(chunk.getKey());
+								if (!readIndexes.contains(chunk.getKey())) {
+									chunks.add(chunk);
+								}
+							}
+							continue;
+						}
+						listIndex(chunk.getKey());
 						if (DATA_SUFFIX.matcher(chunk.getKey()).find() && parseKeyUnchecked(chunk.getKey(),
 								(t, p, o) -> config.partitionFilter.matches(t, p))) {
 							S3Offset offset = offset(chunk);
@@ -172,6 +243,10 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 							chunks.add(chunk);
 						}
 					}
+					if (config.coalesced && !objectListing.isTruncated() && prefix == prefixes.size() - 1) {
+						// forget those that have since been deleted, e.g., by a lifecycle rule
+						readIndexes.retainAll(listedCoalesced);
+					}
 					log.debug("Next Chunks: {}", LazyString.of(() -> chunks.stream().map(S3ObjectSummary::getKey).collect(toList())));
 					nextFile = chunks.iterator();
 				}
@@ -183,25 +258,164 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 					S3ObjectSummary file = nextFile.next();
 
 					currentKey = file.getKey();
+					if (config.listPrefixesPerPartition) {
+						listedUpTo.put(prefixes.get(prefix), currentKey);
+					}
+					if (config.coalesced) {
+						readCoalesced(currentKey);
+						readIndexes.add(currentKey);
+						return;
+					}
 					S3Offset offset = offset(file);
 					if (offset != null && offset.getS3key().equals(currentKey)) {
 						resumeFromOffset(offset);
+					} else if (config.hasTimeRange()) {
+						readTimeRange(currentKey);
 					} else {
-						log.debug("Now reading from {}", currentKey);
-						S3RecordsReader reader = makeReader.get();
-						InputStream content = getContent(s3Client.getObject(config.bucket, currentKey));
-						iterator = parseKey(currentKey, (topic, partition, startOffset) -> {
-							reader.init(topic,partition, content, startOffset);
-							return reader.readAll(topic, partition, content, startOffset);
-						});
+						readObject(currentKey);
 					}
 				} catch (IOException e) {
 					throw new AmazonClientException(e);
 				}
 			}
 
+			private void listIndex(String key) {
+				if (key.endsWith(BinaryChunksIndex.SUFFIX)) {
+					// preferred over the JSON index, if a file somehow has both
+					listedIndexes.put(key.substring(0, key.length() - BinaryChunksIndex.SUFFIX.length()), BinaryChunksIndex.SUFFIX);
+				} else if (key.endsWith(BinaryChunksIndex.JSON_SUFFIX)) {
+					listedIndexes.putIfAbsent(key.substring(0, key.length() - BinaryChunksIndex.JSON_SUFFIX.length()), BinaryChunksIndex.JSON_SUFFIX);
+				}
+			}
+
+			/**
+			 * @return the suffix of the data file's index, going by the listing rather than trying to fetch each
+			 * format in turn.
+			 */
+			private String indexSuffix(String key) {
+				String suffix = listedIndexes.remove(DATA_SUFFIX.matcher(key).replaceAll(""));
+				return suffix != null ? suffix : listIndexSuffix(key);
+			}
+
+			private void readObject(String key) throws IOException {
+				log.debug("Now reading from {}", key);
+				S3RecordsReader reader = makeReader.get();
+				InputStream content = getContent(s3Client.getObject(config.bucket, key));
+				iterator = parseKey(key, (topic, partition, startOffset) -> {
+					reader.init(topic,partition, content, startOffset);
+					return reader.readAll(topic, partition, content, startOffset);
+				});
+			}
+
+			/**
+			 * Read only the chunks whose records may have timestamps in the configured range, or skip the object
+			 * if there are none.
+			 */
+			private void readTimeRange(String key) throws IOException {
+				BinaryChunksIndex index;
+				try {
+					index = getChunksIndex(key, indexSuffix(key));
+				} catch (AmazonS3Exception e) {
+					if (e.getStatusCode() != 404) {
+						throw e;
+					}
+					log.warn("No index for {}. Reading all of it", key);
+					readObject(key);
+					return;
+				}
+				int first = firstChunkInTimeRange(index, 0);
+				if (first < 0) {
+					log.debug("Skipping {}. No records from {} to {}", key, config.startTimestamp, config.endTimestamp);
+					iterator = Collections.emptyIterator();
+					return;
+				}
+				readChunks(key, index, first, index.chunk(first).first_record_offset);
+			}
+
+			/**
+			 * Queue the parts of the partitions we want, from where we left off in them. Which index we left off in
+			 * says nothing about where this one is in the partition, so only the record offsets are compared. A part
+			 * ending before our offset is one another sink task uploaded late, after the partition moved on to a task
+			 * that uploaded those records again.
+			 */
+			private void readCoalesced(String key) throws IOException {
+				CoalescedIndex index;
+				try (S3Object object = s3Client.getObject(config.bucket, key)) {
+					index = COALESCED_INDEX.readValue(object.getObjectContent());
+				}
+				List<PartReader> parts = new ArrayList<>();
+				for (CoalescedIndex.Part part : index.parts) {
+					if (!config.partitionFilter.matches(part.topic, part.partition)) {
+						continue;
+					}
+					long nextOffset = part.first_record_offset;
+					S3Offset offset = offsets.get(S3Partition.from(config.bucket, config.keyPrefix, part.topic, part.partition));
+					if (offset != null && offset.getOffset() >= part.first_record_offset) {
+						if (offset.getOffset() >= part.last_record_offset) {
+							log.debug("Skipping {}-{} in {} because < current offset of {}", part.topic, part.partition, key, offset);
+							continue;
+						}
+						nextOffset = offset.getOffset() + 1;
+					}
+					BinaryChunksIndex chunks = BinaryChunksIndex.of(part.chunks);
+					int chunk = chunks.indexOfChunkContaining(nextOffset);
+					if (config.hasTimeRange()) {
+						int first = firstChunkInTimeRange(chunks, chunk);
+						if (first < 0) {
+							continue;
+						}
+						if (first > chunk) {
+							chunk = first;
+							nextOffset = chunks.chunk(first).first_record_offset;
+						}
+					}
+					int fromChunk = chunk;
+					long fromOffset = nextOffset;
+					parts.add(() -> readPart(index.dataKey(key), part, chunks, fromChunk, fromOffset));
+				}
+				log.debug("Reading {} of {} parts of {}", parts.size(), index.parts.size(), key);
+				nextPart = parts.iterator();
+				iterator = Collections.emptyIterator();
+			}
+
+			/**
+			 * Read a part from the given record offset in the given chunk to its end.
+			 */
+			private Iterator<ConsumerRecord<byte[], byte[]>> readPart(String dataKey, CoalescedIndex.Part part,
+																	  BinaryChunksIndex chunks, int chunk, long nextOffset) throws IOException {
+				S3RecordsReader reader = makeReader.get();
+				ChunkDescriptor chunkDescriptor = chunks.chunk(chunk);
+				long partEnd = part.byte_offset + part.byte_length - 1;
+
+				// the part's header is at its start
+				if (reader.isInitRequired() && chunkDescriptor.byte_offset > 0) {
+					GetObjectRequest header = new GetObjectRequest(config.bucket, dataKey);
+					header.setRange(part.byte_offset, partEnd);
+					try (S3Object object = s3Client.getObject(header)) {
+						reader.init(part.topic, part.partition, config.inputFilter.filter(dataKey, object.getObjectContent()),
+							part.first_record_offset);
+					}
+				}
+
+				GetObjectRequest request = new GetObjectRequest(config.bucket, dataKey);
+				request.setRange(part.byte_offset + chunkDescriptor.byte_offset, partEnd);
+				S3Object object = s3Client.getObject(request);
+				log.debug("Now reading {}-{} from {} at offset {}", part.topic, part.partition, dataKey, nextOffset);
+
+				InputStream content = config.inputFilter.filter(dataKey, object.getObjectContent());
+				if (chunkDescriptor.byte_offset == 0) {
+					reader.init(part.topic, part.partition, content, part.first_record_offset);
+				}
+				Iterator<ConsumerRecord<byte[], byte[]>> records = reader.readAll(part.topic, part.partition, content,
+					chunkDescriptor.first_record_offset);
+				for (long i = chunkDescriptor.first_record_offset; i < nextOffset; i++) {
+					records.next();
+				}
+				return records;
+			}
+
 			private InputStream getContent(S3Object object) throws IOException {
-				return config.inputFilter.filter(object.getObjectContent());
+				return config.inputFilter.filter(object.getKey(), object.getObjectContent());
 			}
 
 			private S3Offset offset(S3ObjectSummary chunk) {
@@ -214,13 +428,12 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 			 */
 			private void resumeFromOffset(S3Offset offset) throws IOException {
 				log.debug("resumeFromOffset {}", offset);
-				S3RecordsReader reader = makeReader.get();
 
-				ChunksIndex index = getChunksIndex(offset.getS3key());
-				ChunkDescriptor chunkDescriptor = index.chunkContaining(offset.getOffset() + 1)
-					.orElse(null);
+				BinaryChunksIndex index = getChunksIndex(offset.getS3key(), indexSuffix(offset.getS3key()));
+				long nextOffset = offset.getOffset() + 1;
+				int chunk = index.indexOfChunkContaining(nextOffset);
 
-				if (chunkDescriptor == null) {
+				if (chunk < 0) {
 					log.warn("Missing chunk descriptor for requested offset {} (max:{}). Moving on to next file.",
 						offset, index.lastOffset());
 					// it's possible we were at the end of this file,
@@ -231,10 +444,45 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 
 				// if we got here, it is a real object and contains
 				// the offset we want to start at
+				if (config.hasTimeRange()) {
+					int first = firstChunkInTimeRange(index, chunk);
+					if (first < 0) {
+						log.debug("Resume {}: no more records from {} to {}", offset, config.startTimestamp, config.endTimestamp);
+						iterator = Collections.emptyIterator();
+						return;
+					}
+					if (first > chunk) {
+						chunk = first;
+						nextOffset = index.chunk(first).first_record_offset;
+					}
+				}
+				readChunks(offset.getS3key(), index, chunk, nextOffset);
+			}
+
+			/**
+			 * @return the first chunk, from the given one on, that may have records in the configured time range.
+			 * -1 if there are none.
+			 */
+			private int firstChunkInTimeRange(BinaryChunksIndex index, int from) {
+				for (int i = from; i < index.size(); i++) {
+					if (index.mayContainTimestamps(i, config.startTimestamp, config.endTimestamp)) {
+						return i;
+					}
+				}
+				return -1;
+			}
+
+			/**
+			 * Read from the given record offset in the given chunk, up to the last chunk that may have records in
+			 * the configured time range, if any.
+			 */
+			private void readChunks(String key, BinaryChunksIndex index, int chunk, long nextOffset) throws IOException {
+				S3RecordsReader reader = makeReader.get();
+				ChunkDescriptor chunkDescriptor = index.chunk(chunk);
 
 				// if need the start of the file for the read, let it read it
 				if (reader.isInitRequired() && chunkDescriptor.byte_offset > 0) {
-					try (S3Object object = s3Client.getObject(new GetObjectRequest(config.bucket, offset.getS3key()))) {
+					try (S3Object object = s3Client.getObject(new GetObjectRequest(config.bucket, key))) {
 						parseKey(object.getKey(), (topic, partition, startOffset) -> {
 							reader.init(topic, partition, getContent(object), startOffset);
 							return null;
@@ -242,19 +490,37 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 					}
 				}
 
-				GetObjectRequest request = new GetObjectRequest(config.bucket, offset.getS3key());
-				request.setRange(chunkDescriptor.byte_offset, index.totalSize());
+				int last = index.size() - 1;
+				while (config.hasTimeRange() && last > chunk
+					&& !index.mayContainTimestamps(last, config.startTimestamp, config.endTimestamp)) {
+					last--;
+				}
+				ChunkDescriptor lastDescriptor = index.chunk(last);
+				long rangeEnd = lastDescriptor.byte_offset + lastDescriptor.byte_length - 1;
+
+				GetObjectRequest request = new GetObjectRequest(config.bucket, key);
+				request.setRange(chunkDescriptor.byte_offset, rangeEnd);
 
 				S3Object object = s3Client.getObject(request);
 
 				currentKey = object.getKey();
-				log.debug("Resume {}: Now reading from {}, reading {}-{}", offset, currentKey, chunkDescriptor.byte_offset, index.totalSize());
+				log.debug("Now reading from {} at offset {}, reading {}-{}", currentKey, nextOffset, chunkDescriptor.byte_offset, rangeEnd);
 
-				iterator = parseKey(object.getKey(), (topic, partition, startOffset) ->
-					reader.readAll(topic, partition, getContent(object), chunkDescriptor.first_record_offset));
+				// rather than parse every record in the chunk up to the offset, discard the bytes up to the
+				// closest checkpoint before it, if the sink recorded any
+				int checkpoint = index.checkpointBefore(chunk, nextOffset);
+				long readFromOffset = checkpoint < 0 ? chunkDescriptor.first_record_offset : index.checkpointOffset(checkpoint);
+				long bytesToSkip = checkpoint < 0 ? 0 : index.checkpointPosition(checkpoint);
+				log.debug("{}: skipping {} bytes to offset {}", currentKey, bytesToSkip, readFromOffset);
+
+				iterator = parseKey(object.getKey(), (topic, partition, startOffset) -> {
+					InputStream content = getContent(object);
+					skipFully(content, bytesToSkip);
+					return reader.readAll(topic, partition, content, readFromOffset);
+				});
 
 				// skip records before the given offset
-				long recordSkipCount = offset.getOffset() - chunkDescriptor.first_record_offset + 1;
+				long recordSkipCount = nextOffset - readFromOffset;
 				for (int i = 0; i < recordSkipCount; i++) {
 					iterator.next();
 				}
@@ -269,7 +535,8 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 			}
 
 			boolean hasMoreObjects() {
-				return objectListing == null || objectListing.isTruncated() || nextFile.hasNext();
+				return objectListing == null || objectListing.isTruncated() || nextFile.hasNext() || nextPart.hasNext()
+					|| prefix < prefixes.size() - 1;
 			}
 
 			@Override
@@ -292,6 +559,18 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 		};
 	}
 
+	/**
+	 * @return the key prefix, or, if the layout lets us, only the parts of it holding the partitions we want.
+	 */
+	private List<String> listPrefixes() {
+		String keyPrefix = config.keyPrefix;
+		if (config.listPrefixes.isEmpty()) {
+			return Collections.singletonList(keyPrefix);
+		}
+		String dir = keyPrefix.isEmpty() || keyPrefix.endsWith("/") ? keyPrefix : keyPrefix + "/";
+		return config.listPrefixes.stream().map(p -> p.isEmpty() ? keyPrefix : dir + p).collect(toList());
+	}
+
 	private <T> T parseKeyUnchecked(String key, QuietKeyConsumer<T> consumer) {
 		try {
 			return parseKey(key, consumer::consume);
@@ -313,6 +592,10 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 	}
 
 
+	private interface PartReader {
+		Iterator<ConsumerRecord<byte[], byte[]>> read() throws IOException;
+	}
+
 	private interface QuietKeyConsumer<T> {
 		T consume(String topic, int partition, long startOffset);
 	}
@@ -321,19 +604,88 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 		T consume(String topic, int partition, long startOffset) throws IOException;
 	}
 
-	private ChunksIndex getChunksIndex(String key) throws IOException {
-		return indexParser.readValue(new InputStreamReader(s3Client.getObject(config.bucket, DATA_SUFFIX.matcher(key)
-			.replaceAll(".index.json")).getObjectContent()));
+	private static void skipFully(InputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0) {
+				// skip() may give up early. read() tells us whether that was the end
+				if (in.read() < 0) {
+					throw new EOFException("Data ended " + bytes + " bytes before the checkpoint");
+				}
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+
+	/**
+	 * For a data file whose index wasn't in the listing we read it from, e.g., the one we resume from: list its
+	 * indexes. Prefers the binary index, falling back to JSON for files written without one.
+	 */
+	private String listIndexSuffix(String key) {
+		String base = DATA_SUFFIX.matcher(key).replaceAll("");
+		ObjectListing indexes = s3Client.listObjects(new ListObjectsRequest(config.bucket, base + ".index.", null, null, 2));
+		return indexes.getObjectSummaries().stream().anyMatch(index -> index.getKey().endsWith(BinaryChunksIndex.SUFFIX))
+			? BinaryChunksIndex.SUFFIX : BinaryChunksIndex.JSON_SUFFIX;
+	}
+
+	private BinaryChunksIndex getChunksIndex(String key, String suffix) throws IOException {
+		String indexKey = DATA_SUFFIX.matcher(key).replaceAll(suffix);
+		try (S3Object index = s3Client.getObject(config.bucket, indexKey)) {
+			return BinaryChunksIndex.read(indexKey, index.getObjectContent());
+		}
 	}
 
 	/**
 	 * Filtering applied to the S3InputStream. Will almost always start
-	 * with GUNZIP, but could also include things like decryption.
+	 * with DECOMPRESS, but could also include things like decryption.
 	 */
 	public interface InputFilter {
 		InputStream filter(InputStream inputStream) throws IOException;
 
-		InputFilter GUNZIP = GZIPInputStream::new;
+		/**
+		 * @param key the S3 key of the object being read, e.g., to pick a decoder by extension.
+		 */
+		default InputStream filter(String key, InputStream inputStream) throws IOException {
+			return filter(inputStream);
+		}
+
+		InputFilter GUNZIP = BlockCodec.GZIP::decompress;
+
+		/**
+		 * Decompress with the codec matching the key's extension, falling back to gzip.
+		 */
+		InputFilter DECOMPRESS = new InputFilter() {
+			@Override
+			public InputStream filter(InputStream inputStream) throws IOException {
+				return GUNZIP.filter(inputStream);
+			}
+
+			@Override
+			public InputStream filter(String key, InputStream inputStream) throws IOException {
+				return Optional.ofNullable(key).flatMap(BlockCodec::forKey).orElse(BlockCodec.GZIP).decompress(inputStream);
+			}
+		};
+
+		/**
+		 * {@link #DECOMPRESS}, finding the preset dictionaries of {@link PresetDictionaryCodec} blocks with the given lookup.
+		 */
+		static InputFilter decompress(PresetDictionaryCodec.Dictionaries dictionaries) {
+			return new InputFilter() {
+				@Override
+				public InputStream filter(InputStream inputStream) throws IOException {
+					return GUNZIP.filter(inputStream);
+				}
+
+				@Override
+				public InputStream filter(String key, InputStream inputStream) throws IOException {
+					BlockCodec codec = Optional.ofNullable(key).flatMap(BlockCodec::forKey).orElse(BlockCodec.GZIP);
+					return codec == BlockCodec.ZLIB_DICT
+						? PresetDictionaryCodec.decompress(inputStream, dictionaries)
+						: codec.decompress(inputStream);
+				}
+			};
+		}
 	}
 
 }
@@ -1,5 +1,7 @@
 package com.spredfast.kafka.connect.s3.source;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public class S3SourceConfig {
@@ -8,8 +10,19 @@ public class S3SourceConfig {
 	public int pageSize = 500;
 	public String startMarker = null; // for partial replay
 	public Pattern keyPattern = S3FilesReader.DEFAULT_PATTERN;
-	public S3FilesReader.InputFilter inputFilter = S3FilesReader.InputFilter.GUNZIP;
+	public S3FilesReader.InputFilter inputFilter = S3FilesReader.InputFilter.DECOMPRESS;
 	public S3FilesReader.PartitionFilter partitionFilter = S3FilesReader.PartitionFilter.MATCH_ALL;
+	// record timestamps to replay, in epoch millis. Chunks of records entirely outside this range are skipped.
+	public long startTimestamp = Long.MIN_VALUE;
+	public long endTimestamp = Long.MAX_VALUE;
+	// to list only these, under the key prefix, rather than all of it. See KeyLayout#listPrefixes
+	public List<String> listPrefixes = Collections.emptyList();
+	// each of listPrefixes holds one partition, whose keys only ever grow, so listing can carry on after the last
+	// key read rather than start over
+	public boolean listPrefixesPerPartition = false;
+	// read the coalesced objects written by sinks with upload.coalesce, rather than data files. Their keys don't sort in
+	// the order they were uploaded, so they are all listed every time, and parts are skipped by record offset
+	public boolean coalesced = false;
 
 	public S3SourceConfig(String bucket) {
 		this.bucket = bucket;
@@ -28,4 +41,8 @@ public class S3SourceConfig {
 			this.partitionFilter = partitionFilter;
 		}
 	}
+
+	public boolean hasTimeRange() {
+		return startTimestamp != Long.MIN_VALUE || endTimestamp != Long.MAX_VALUE;
+	}
 }
@@ -4,9 +4,13 @@ import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 import static java.util.stream.Collectors.toSet;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -14,8 +18,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.SchemaAndValue;
 import org.apache.kafka.connect.errors.ConnectException;
 import org.apache.kafka.connect.source.SourceRecord;
@@ -25,11 +31,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
 import com.spredfast.kafka.connect.s3.AlreadyBytesConverter;
 import com.spredfast.kafka.connect.s3.Constants;
 import com.spredfast.kafka.connect.s3.Configure;
+import com.spredfast.kafka.connect.s3.KeyLayout;
+import com.spredfast.kafka.connect.s3.PresetDictionaryCodec;
+import com.spredfast.kafka.connect.s3.RefCountedCache;
 import com.spredfast.kafka.connect.s3.S3;
 import com.spredfast.kafka.connect.s3.S3RecordFormat;
+import com.spredfast.kafka.connect.s3.json.CoalescedIndex;
 
 public class S3SourceTask extends SourceTask {
 	private static final Logger log = LoggerFactory.getLogger(S3SourceTask.class);
@@ -47,9 +59,19 @@ public class S3SourceTask extends SourceTask {
 	private S3RecordFormat format;
 	private Optional<Converter> keyConverter;
 	private Converter valueConverter;
+	// the converters pass bytes through as they are, so records are built without calling them
+	private boolean passThrough;
+	private boolean rawKeys;
 	private long s3PollInterval = 10_000L;
 	private long errorBackoff = 1000L;
 	private Map<S3Partition, S3Offset> offsets;
+	// reading coalesced objects, whose keys don't sort in offset order
+	private boolean coalesced;
+	private RefCountedCache.Lease<AmazonS3> client;
+	// kept across idle polls, so it can carry on listing where it left off
+	private S3FilesReader files;
+	// preset dictionaries by id. a dictionary never changes once it is uploaded
+	private final Map<Long, byte[]> dictionaries = new ConcurrentHashMap<>();
 
 	@Override
 	public String version() {
@@ -63,7 +85,10 @@ public class S3SourceTask extends SourceTask {
 
 		keyConverter = Optional.ofNullable(Configure.buildConverter(taskConfig, "key.converter", true, null));
 		valueConverter = Configure.buildConverter(taskConfig, "value.converter", false, AlreadyBytesConverter.class);
+		rawKeys = keyConverter.filter(AlreadyBytesConverter::isIdentity).isPresent();
+		passThrough = AlreadyBytesConverter.isIdentity(valueConverter) && (rawKeys || !keyConverter.isPresent());
 
+		client = S3.sharedClient(taskConfig);
 		readFromStoredOffsets();
 	}
 
@@ -114,29 +139,83 @@ public class S3SourceTask extends SourceTask {
 			.map(Long::parseLong)
 			.orElse(1000L);
 
-		AmazonS3 client = S3.s3client(taskConfig);
-
-
 		S3SourceConfig config = new S3SourceConfig(
 			bucket, prefix,
 			configGet("s3.page.size").map(Integer::parseInt).orElse(100),
 			configGet("s3.start.marker").orElse(null),
 			S3FilesReader.DEFAULT_PATTERN,
-			S3FilesReader.InputFilter.GUNZIP,
+			S3FilesReader.InputFilter.decompress(id -> dictionary(bucket, prefix, id)),
 			S3FilesReader.PartitionFilter.from((topic, partition) ->
 				(topics.isEmpty() || topics.contains(topic))
 				&& partitionNumbers.contains(partition))
 		);
+		config.startTimestamp = configGet("s3.start.timestamp").map(S3SourceTask::parseTimestamp).orElse(Long.MIN_VALUE);
+		config.endTimestamp = configGet("s3.end.timestamp").map(S3SourceTask::parseTimestamp).orElse(Long.MAX_VALUE);
+		KeyLayout layout = configGet("s3.key.layout").map(S3SourceTask::parseLayout).orElse(KeyLayout.DEFAULT);
+		config.listPrefixes = layout.listPrefixes(topics, partitionNumbers);
+		config.listPrefixesPerPartition = layout.byTopic() && layout.byPartition() && !topics.isEmpty();
+		config.coalesced = configGet("s3.coalesced").map(Boolean::parseBoolean).orElse(false);
+		coalesced = config.coalesced;
+		if (config.coalesced) {
+			// wherever the layout would put data files
+			config.listPrefixes = Collections.singletonList(CoalescedIndex.DIR);
+			config.listPrefixesPerPartition = false;
+		}
 
 		log.debug("{} reading from S3 with offsets {}", name(), offsets);
 
-		reader = new S3FilesReader(config, client, offsets, format::newReader).readAll();
+		files = new S3FilesReader(config, client.get(), offsets, format::newReader);
+		reader = files.readAll();
+	}
+
+	/**
+	 * @return the preset dictionary the sink uploaded under the prefix, or null if there is none with the id.
+	 */
+	private byte[] dictionary(String bucket, String prefix, long id) throws IOException {
+		byte[] dictionary = dictionaries.get(id);
+		if (dictionary != null) {
+			return dictionary;
+		}
+		String key = PresetDictionaryCodec.key(prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/", id);
+		try (S3Object object = client.get().getObject(bucket, key)) {
+			dictionary = IOUtils.toByteArray(object.getObjectContent());
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() != 404) {
+				throw e;
+			}
+			return null;
+		}
+		dictionaries.put(id, dictionary);
+		return dictionary;
 	}
 
 	private Optional<String> configGet(String key) {
 		return Optional.ofNullable(taskConfig.get(key));
 	}
 
+	private static KeyLayout parseLayout(String template) {
+		try {
+			return new KeyLayout(template);
+		} catch (IllegalArgumentException e) {
+			throw new ConnectException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @param timestamp epoch millis, or an ISO-8601 instant like 2016-01-01T03:00:00Z.
+	 */
+	static long parseTimestamp(String timestamp) {
+		try {
+			return Long.parseLong(timestamp);
+		} catch (NumberFormatException e) {
+			try {
+				return Instant.parse(timestamp).toEpochMilli();
+			} catch (DateTimeParseException notIso) {
+				throw new ConnectException("Timestamps must be epoch milliseconds or ISO-8601, like 2016-01-01T03:00:00Z. Was " + timestamp);
+			}
+		}
+	}
+
 
 	@Override
 	public List<SourceRecord> poll() throws InterruptedException {
@@ -170,7 +249,7 @@ public class S3SourceTask extends SourceTask {
 			log.debug("Blocking until new S3 files are available.");
 			// sleep and block here until new files are available
 			Thread.sleep(s3PollInterval);
-			readFromStoredOffsets();
+			reader = files.readAll();
 		}
 
 		if (stopped.get()) {
@@ -181,6 +260,11 @@ public class S3SourceTask extends SourceTask {
 			S3SourceRecord record = reader.next();
 			updateOffsets(record.file(), record.offset());
 			String topic = topicMapping.computeIfAbsent(record.topic(), this::remapTopic);
+			if (passThrough) {
+				results.add(new SourceRecord(record.file().asMap(), record.offset().asMap(), topic, record.partition(),
+					rawKeys ? Schema.BYTES_SCHEMA : null, rawKeys ? record.key() : null, Schema.BYTES_SCHEMA, record.value()));
+				continue;
+			}
 			// we know the reader returned bytes so, we can cast the key+value and use a converter to
 			// generate the "real" source record
 			Optional<SchemaAndValue> key = keyConverter.map(c -> c.toConnectData(topic, record.key()));
@@ -198,7 +282,7 @@ public class S3SourceTask extends SourceTask {
 	private void updateOffsets(S3Partition file, S3Offset offset) {
 		// store the larger offset. we don't read out of order (could probably get away with always writing what we are handed)
 		S3Offset current = offsets.getOrDefault(file, offset);
-		if (current.compareTo(offset) < 0) {
+		if (coalesced ? current.getOffset() < offset.getOffset() : current.compareTo(offset) < 0) {
 			log.debug("{} updated offset for {} to {}", name(), file, offset);
 			offsets.put(file, offset);
 		} else {
@@ -227,6 +311,9 @@ public class S3SourceTask extends SourceTask {
 	@Override
 	public void stop() {
 		this.stopped.set(true);
+		if (client != null) {
+			client.close();
+		}
 	}
 
 }
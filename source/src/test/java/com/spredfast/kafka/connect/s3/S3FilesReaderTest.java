@@ -5,12 +5,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.FileVisitResult;
@@ -20,6 +26,7 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,11 +37,13 @@ import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.SchemaAndValue;
 import org.apache.kafka.connect.storage.Converter;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListNextBatchOfObjectsRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
@@ -42,6 +51,8 @@ import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.json.CoalescedIndex;
 import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
 import com.spredfast.kafka.connect.s3.source.S3FilesReader;
 import com.spredfast.kafka.connect.s3.source.S3Offset;
@@ -101,6 +112,277 @@ public class S3FilesReaderTest {
 	}
 
 
+	@Test
+	public void testReadingBytesFromS3_withOffsetsAndBinaryIndex() throws IOException {
+		final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+		new File(dir.toFile(), "prefix/2015-12-31").mkdirs();
+		// small chunks, so the offset has to be looked up
+		try (BlockGZIPFileWriter writer = new BlockGZIPFileWriter("topic-00003", dir.toString() + "/prefix/2015-12-31", 1, 20,
+			new byte[0], null, BlockCodec.GZIP, true)) {
+			for (int i = 1; i < 10; i++) {
+				write(writer, "willbe".getBytes(), ("skipped" + i).getBytes(), true);
+			}
+		}
+		assertTrue(new File(dir.toFile(), "prefix/2015-12-31/topic-00003-000000000001.index.bin").exists());
+
+		final AmazonS3 client = givenAMockS3Client(dir);
+
+		List<String> results = whenTheRecordsAreRead(givenAReaderWithOffsets(client,
+			"prefix/2015-12-31/topic-00003-000000000001.gz", 7L, "00003"));
+
+		assertEquals(Arrays.asList(
+			"willbe=skipped7",
+			"willbe=skipped8",
+			"willbe=skipped9"
+		), results);
+	}
+
+	@Test
+	public void testReadingBytesFromS3_withOffsetsAndCheckpoints() throws IOException {
+		final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+		new File(dir.toFile(), "prefix/2015-12-31").mkdirs();
+		try (BlockGZIPFileWriter writer = new BlockGZIPFileWriter("topic-00003", dir.toString() + "/prefix/2015-12-31", 1, 512)) {
+			writer.setCheckpointInterval(3);
+			for (int i = 1; i < 10; i++) {
+				write(writer, "willbe".getBytes(), ("skipped" + i).getBytes(), true);
+			}
+		}
+
+		final AmazonS3 client = givenAMockS3Client(dir);
+
+		// between the checkpoints at 4 and 7
+		List<String> results = whenTheRecordsAreRead(givenAReaderWithOffsets(client,
+			"prefix/2015-12-31/topic-00003-000000000001.gz", 6L, "00003"));
+
+		assertEquals(Arrays.asList(
+			"willbe=skipped6",
+			"willbe=skipped7",
+			"willbe=skipped8",
+			"willbe=skipped9"
+		), results);
+	}
+
+	@Test
+	public void testReadingBytesFromS3_withTimeRange() throws IOException {
+		final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+		new File(dir.toFile(), "prefix/2015-12-30").mkdirs();
+		new File(dir.toFile(), "prefix/2015-12-31").mkdirs();
+		// an earlier file, all before the range
+		try (BlockGZIPFileWriter writer = new BlockGZIPFileWriter("topic-00003", dir.toString() + "/prefix/2015-12-30", 0, 512)) {
+			write(writer, "willbe".getBytes(), "skipped0".getBytes(), 500L);
+		}
+		// one record per chunk, a second apart
+		try (BlockGZIPFileWriter writer = new BlockGZIPFileWriter("topic-00003", dir.toString() + "/prefix/2015-12-31", 1, 20)) {
+			for (int i = 1; i < 10; i++) {
+				write(writer, "willbe".getBytes(), ("skipped" + i).getBytes(), i * 1000L);
+			}
+		}
+
+		final AmazonS3 client = givenAMockS3Client(dir);
+		S3SourceConfig config = new S3SourceConfig("bucket", "prefix", 1, null, S3FilesReader.DEFAULT_PATTERN, S3FilesReader.InputFilter.GUNZIP, null);
+		config.startTimestamp = 3000;
+		config.endTimestamp = 5500;
+
+		List<String> results = whenTheRecordsAreRead(new S3FilesReader(config, client, null, () -> new BytesRecordReader(true)));
+
+		assertEquals(Arrays.asList(
+			"willbe=skipped3",
+			"willbe=skipped4",
+			"willbe=skipped5"
+		), results);
+		// the earlier file's data was never fetched
+		verify(client, never()).getObject("bucket", "prefix/2015-12-30/topic-00003-000000000000.gz");
+		// the listing showed there are only JSON indexes, so no binary ones were asked for
+		verify(client, never()).getObject("bucket", "prefix/2015-12-30/topic-00003-000000000000.index.bin");
+		verify(client, never()).getObject("bucket", "prefix/2015-12-31/topic-00003-000000000001.index.bin");
+	}
+
+	@Test
+	public void testReadingBytesFromS3_withKeyLayout() throws IOException {
+		final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+		for (String partition : Arrays.asList("topic/00000", "topic/00001", "other/00001")) {
+			new File(dir.toFile(), "prefix/" + partition + "/2016/01/01").mkdirs();
+			new File(dir.toFile(), "prefix/" + partition + "/2016/01/02").mkdirs();
+		}
+		try (BlockGZIPFileWriter p0 = new BlockGZIPFileWriter("topic-00000", dir.toString() + "/prefix/topic/00000/2016/01/01", 0, 512);
+			 BlockGZIPFileWriter p1 = new BlockGZIPFileWriter("topic-00001", dir.toString() + "/prefix/topic/00001/2016/01/01", 0, 512);
+			 BlockGZIPFileWriter p1Later = new BlockGZIPFileWriter("topic-00001", dir.toString() + "/prefix/topic/00001/2016/01/02", 2, 512);
+			 BlockGZIPFileWriter other = new BlockGZIPFileWriter("other-00001", dir.toString() + "/prefix/other/00001/2016/01/01", 0, 512);
+		) {
+			write(p0, "key0-0".getBytes(), "value0-0".getBytes(), true);
+			write(p1, "key1-0".getBytes(), "value1-0".getBytes(), true);
+			write(p1, "key1-1".getBytes(), "value1-1".getBytes(), true);
+			write(p1Later, "key1-2".getBytes(), "value1-2".getBytes(), true);
+			write(other, "other".getBytes(), "other".getBytes(), true);
+		}
+
+		final AmazonS3 client = givenAMockS3Client(dir);
+		S3SourceConfig config = new S3SourceConfig("bucket", "prefix", 1, null, S3FilesReader.DEFAULT_PATTERN, S3FilesReader.InputFilter.GUNZIP,
+			S3FilesReader.PartitionFilter.from((topic, partition) -> "topic".equals(topic) && partition == 1));
+		config.listPrefixes = new KeyLayout("{topic}/{partition}/{yyyy}/{MM}/{dd}")
+			.listPrefixes(Collections.singleton("topic"), Collections.singleton(1));
+
+		List<String> results = whenTheRecordsAreRead(new S3FilesReader(config, client, null, () -> new BytesRecordReader(true)));
+
+		assertEquals(Arrays.asList(
+			"key1-0=value1-0",
+			"key1-1=value1-1",
+			"key1-2=value1-2"
+		), results);
+		// only the partition's own keys were listed
+		ArgumentCaptor<ListObjectsRequest> listed = ArgumentCaptor.forClass(ListObjectsRequest.class);
+		verify(client, atLeastOnce()).listObjects(listed.capture());
+		for (ListObjectsRequest request : listed.getAllValues()) {
+			assertEquals("prefix/topic/00001/", request.getPrefix());
+		}
+	}
+
+	@Test
+	public void testReadingBytesFromS3_carriesOnListingPerPartition() throws IOException {
+		final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+		new File(dir.toFile(), "prefix/topic/00001/2016/01/01").mkdirs();
+		new File(dir.toFile(), "prefix/topic/00001/2016/01/02").mkdirs();
+		try (BlockGZIPFileWriter p1 = new BlockGZIPFileWriter("topic-00001", dir.toString() + "/prefix/topic/00001/2016/01/01", 0, 512)) {
+			write(p1, "key1-0".getBytes(), "value1-0".getBytes(), true);
+		}
+
+		final AmazonS3 client = givenAMockS3Client(dir);
+		S3SourceConfig config = new S3SourceConfig("bucket", "prefix", 1, null, S3FilesReader.DEFAULT_PATTERN, S3FilesReader.InputFilter.GUNZIP, null);
+		config.listPrefixes = Collections.singletonList("topic/00001/");
+		config.listPrefixesPerPartition = true;
+		S3FilesReader reader = new S3FilesReader(config, client, null, () -> new BytesRecordReader(true));
+		assertEquals(Collections.singletonList("key1-0=value1-0"), whenTheRecordsAreRead(reader));
+
+		// a new file arrives
+		try (BlockGZIPFileWriter p1 = new BlockGZIPFileWriter("topic-00001", dir.toString() + "/prefix/topic/00001/2016/01/02", 1, 512)) {
+			write(p1, "key1-1".getBytes(), "value1-1".getBytes(), true);
+		}
+
+		assertEquals(Collections.singletonList("key1-1=value1-1"), whenTheRecordsAreRead(reader));
+		ArgumentCaptor<ListObjectsRequest> listed = ArgumentCaptor.forClass(ListObjectsRequest.class);
+		verify(client, atLeastOnce()).listObjects(listed.capture());
+		List<ListObjectsRequest> requests = listed.getAllValues();
+		// the second time, only what came after the file already read
+		assertEquals(null, requests.get(0).getMarker());
+		assertEquals("prefix/topic/00001/2016/01/01/topic-00001-000000000000.gz", requests.get(1).getMarker());
+	}
+
+	@Test
+	public void testReadingBytesFromS3_coalesced() throws IOException {
+		final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+		final Path local = Files.createTempDirectory("s3FilesReaderTest");
+		try (BlockGZIPFileWriter p0 = new BlockGZIPFileWriter("topic-00000", local.toString(), 0, 512);
+			 BlockGZIPFileWriter p1 = new BlockGZIPFileWriter("topic-00001", local.toString(), 0, 20);
+			 BlockGZIPFileWriter p1Later = new BlockGZIPFileWriter("topic-00001", local.toString(), 3, 512)) {
+			write(p0, "key0-0".getBytes(), "value0-0".getBytes(), true);
+			for (int i = 0; i < 3; i++) {
+				write(p1, ("key1-" + i).getBytes(), ("value1-" + i).getBytes(), true);
+			}
+			write(p1Later, "key1-3".getBytes(), "value1-3".getBytes(), true);
+		}
+		givenACoalescedObject(dir, local, "prefix/coalesced/0000000000001-sink-0-000001", "topic-00000-000000000000", "topic-00001-000000000000");
+		givenACoalescedObject(dir, local, "prefix/coalesced/0000000000002-sink-0-000002", "topic-00001-000000000003");
+
+		final AmazonS3 client = givenAMockS3Client(dir);
+		Map<S3Partition, S3Offset> offsets = new HashMap<>();
+		offsets.put(S3Partition.from("bucket", "prefix", "topic", 1),
+			S3Offset.from("prefix/coalesced/0000000000001-sink-0-000001.coalesced.index.json", 0));
+		S3SourceConfig config = new S3SourceConfig("bucket", "prefix", 1, null, S3FilesReader.DEFAULT_PATTERN, S3FilesReader.InputFilter.GUNZIP,
+			p -> p == 1);
+		config.coalesced = true;
+		config.listPrefixes = Collections.singletonList("coalesced/");
+
+		List<String> results = whenTheRecordsAreRead(new S3FilesReader(config, client, offsets, () -> new BytesRecordReader(true)));
+
+		assertEquals(Arrays.asList(
+			"key1-1=value1-1",
+			"key1-2=value1-2",
+			"key1-3=value1-3"
+		), results);
+	}
+
+	@Test
+	public void testReadingBytesFromS3_coalescedUploadedLate() throws IOException {
+		final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+		final Path local = Files.createTempDirectory("s3FilesReaderTest");
+		try (BlockGZIPFileWriter p0 = new BlockGZIPFileWriter("topic-00000", local.toString(), 0, 512);
+			 BlockGZIPFileWriter p1 = new BlockGZIPFileWriter("topic-00001", local.toString(), 0, 512);
+			 BlockGZIPFileWriter p1Later = new BlockGZIPFileWriter("topic-00001", local.toString(), 2, 512)) {
+			write(p0, "key0-0".getBytes(), "value0-0".getBytes(), true);
+			for (int i = 0; i < 2; i++) {
+				write(p1, ("key1-" + i).getBytes(), ("value1-" + i).getBytes(), true);
+			}
+			write(p1Later, "key1-2".getBytes(), "value1-2".getBytes(), true);
+		}
+		givenACoalescedObject(dir, local, "prefix/coalesced/0000000000002-sink-0-000001", "topic-00001-000000000000");
+
+		final AmazonS3 client = givenAMockS3Client(dir);
+		Map<S3Partition, S3Offset> offsets = new HashMap<>();
+		S3SourceConfig config = new S3SourceConfig("bucket", "prefix", 1, null, S3FilesReader.DEFAULT_PATTERN, S3FilesReader.InputFilter.GUNZIP, null);
+		config.coalesced = true;
+		config.listPrefixes = Collections.singletonList("coalesced/");
+		S3FilesReader reader = new S3FilesReader(config, client, offsets, () -> new BytesRecordReader(true));
+
+		assertEquals(Arrays.asList("key1-0=value1-0", "key1-1=value1-1"), whenTheRecordsAreRead(reader, offsets));
+
+		// another task's upload started first, but only shows up now, named before the one already read
+		givenACoalescedObject(dir, local, "prefix/coalesced/0000000000001-sink-1-000001", "topic-00000-000000000000", "topic-00001-000000000002");
+
+		assertEquals(Arrays.asList("key0-0=value0-0", "key1-2=value1-2"), whenTheRecordsAreRead(reader, offsets));
+		assertEquals(Collections.emptyList(), whenTheRecordsAreRead(reader, offsets));
+		// each index is only fetched once
+		verify(client, times(1)).getObject("bucket", "prefix/coalesced/0000000000002-sink-0-000001.coalesced.index.json");
+		verify(client, times(1)).getObject("bucket", "prefix/coalesced/0000000000001-sink-1-000001.coalesced.index.json");
+	}
+
+	/**
+	 * Read, keeping track of offsets as S3SourceTask does.
+	 */
+	private List<String> whenTheRecordsAreRead(S3FilesReader reader, Map<S3Partition, S3Offset> offsets) {
+		List<String> results = new ArrayList<>();
+		for (S3SourceRecord record : reader) {
+			offsets.put(record.file(), record.offset());
+			results.add(new String(record.key()) + "=" + new String(record.value()));
+		}
+		return results;
+	}
+
+	/**
+	 * Pack local data files into one object, as a sink with upload.coalesce would.
+	 */
+	private void givenACoalescedObject(Path dir, Path local, String name, String... files) throws IOException {
+		CoalescedIndex index = new CoalescedIndex();
+		index.extension = "gz";
+		index.parts = new ArrayList<>();
+		File data = new File(dir.toFile(), name + ".coalesced.gz");
+		data.getParentFile().mkdirs();
+		try (FileOutputStream out = new FileOutputStream(data)) {
+			long position = 0;
+			for (String file : files) {
+				byte[] bytes = Files.readAllBytes(local.resolve(file + ".gz"));
+				BinaryChunksIndex chunks;
+				try (FileInputStream in = new FileInputStream(local.resolve(file + ".index.json").toFile())) {
+					chunks = BinaryChunksIndex.read(file + ".index.json", in);
+				}
+				CoalescedIndex.Part part = new CoalescedIndex.Part();
+				part.topic = "topic";
+				part.partition = Integer.parseInt(file.substring(6, 11));
+				part.byte_offset = position;
+				part.byte_length = bytes.length;
+				part.first_record_offset = chunks.chunk(0).first_record_offset;
+				part.last_record_offset = chunks.lastOffset();
+				part.chunks = new ArrayList<>();
+				for (int i = 0; i < chunks.size(); i++) {
+					part.chunks.add(chunks.chunk(i));
+				}
+				index.parts.add(part);
+				out.write(bytes);
+				position += bytes.length;
+			}
+		}
+		new ObjectMapper().writeValue(new File(dir.toFile(), name + ".coalesced.index.json"), index);
+	}
+
 	@Test
 	public void testReadingBytesFromS3_withOffsetsAtEndOfFile() throws IOException {
 		final Path dir = Files.createTempDirectory("s3FilesReaderTest");
@@ -233,8 +515,8 @@ public class S3FilesReaderTest {
 					@Override
 					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
 						String key = key(file.toFile());
-						if (req.getMarker() == null
-							|| key.compareTo(req.getMarker()) > 0) {
+						if ((req.getMarker() == null || key.compareTo(req.getMarker()) > 0)
+							&& (req.getPrefix() == null || key.startsWith(req.getPrefix()))) {
 							files.add(file.toFile());
 						}
 						return FileVisitResult.CONTINUE;
@@ -251,6 +533,7 @@ public class S3FilesReaderTest {
 				}
 
 				listing.setMaxKeys(req.getMaxKeys());
+				listing.setPrefix(req.getPrefix());
 
 				listing.getObjectSummaries().addAll(summaries);
 				listing.setTruncated(files.size() > req.getMaxKeys());
@@ -275,8 +558,15 @@ public class S3FilesReaderTest {
 		when(client.getObject(any(GetObjectRequest.class))).thenAnswer(new Answer<S3Object>() {
 			@Override
 			public S3Object answer(InvocationOnMock invocationOnMock) throws Throwable {
-				String key = ((GetObjectRequest) invocationOnMock.getArguments()[0]).getKey();
-				return getFile(key, dir);
+				GetObjectRequest request = (GetObjectRequest) invocationOnMock.getArguments()[0];
+				S3Object object = getFile(request.getKey(), dir);
+				long[] range = request.getRange();
+				if (range != null) {
+					byte[] bytes = Files.readAllBytes(new File(dir.toString(), request.getKey()).toPath());
+					byte[] part = Arrays.copyOfRange(bytes, (int) range[0], (int) Math.min(bytes.length, range[1] + 1));
+					when(object.getObjectContent()).thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(part), null));
+				}
+				return object;
 			}
 		});
 		when(client.getObjectMetadata(anyString(), anyString())).thenAnswer(new Answer<S3Object>() {
@@ -295,8 +585,13 @@ public class S3FilesReaderTest {
 	}
 
 	S3Object getFile(String key, Path dir) throws FileNotFoundException {
-		S3Object obj = mock(S3Object.class);
 		File file = new File(dir.toString(), key);
+		if (!file.exists()) {
+			AmazonS3Exception e = new AmazonS3Exception("Nope: " + key);
+			e.setStatusCode(404);
+			throw e;
+		}
+		S3Object obj = mock(S3Object.class);
 		when(obj.getKey()).thenReturn(file.getName());
 		S3ObjectInputStream stream = new S3ObjectInputStream(new FileInputStream(file), null);
 		when(obj.getObjectContent()).thenReturn(stream);
@@ -345,6 +640,15 @@ public class S3FilesReaderTest {
 		}
 	}
 
+	private void write(BlockGZIPFileWriter writer, byte[] key, byte[] value, long timestamp) throws IOException {
+		List<byte[]> encoded = new ByteLengthFormat(true).newWriter().writeBatch(Stream.of(new ProducerRecord<>("", key, value))).collect(toList());
+		writer.write(out -> {
+			for (byte[] bytes : encoded) {
+				out.write(bytes);
+			}
+		}, timestamp);
+	}
+
 	private void write(BlockGZIPFileWriter writer, byte[] key, byte[] value, boolean includeKeys) throws IOException {
 		writer.write(new ByteLengthFormat(includeKeys).newWriter().writeBatch(Stream.of(new ProducerRecord<>("", key, value))).collect(toList()), 1);
 	}